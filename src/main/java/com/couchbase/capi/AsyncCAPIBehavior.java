@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that talk to their
+ * backend asynchronously.
+ *
+ * When the CAPIBehavior passed to the server implements this interface,
+ * _bulk_docs and _revs_diff are served without holding on to a request
+ * thread: the body is read with non-blocking I/O, the returned stage is
+ * awaited without blocking, and the response is written once it completes.
+ *
+ * Complete the stage exceptionally with a
+ * {@link javax.servlet.UnavailableException} to have the request rejected
+ * with 503, and with null to report the database as missing.  For
+ * _bulk_docs this takes precedence over {@link RawBulkDocsBehavior} and
+ * {@link StreamingBulkDocsBehavior}.
+ */
+public interface AsyncCAPIBehavior extends CAPIBehavior {
+
+    CompletionStage<Map<String, Object>> revsDiffAsync(String database, Map<String, Object> revs);
+
+    CompletionStage<List<Object>> bulkDocsAsync(String database, List<Map<String, Object>> docs);
+
+}
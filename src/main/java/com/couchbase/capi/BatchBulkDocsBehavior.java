@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that can write the
+ * documents of several databases in a single downstream operation.
+ *
+ * Used by {@link com.couchbase.capi.servlet.BulkDocsBatcher} to turn the
+ * documents of many concurrent _bulk_docs requests, typically one per
+ * vbucket, into one write.
+ */
+public interface BatchBulkDocsBehavior extends CAPIBehavior {
+
+    /**
+     * @param docsByDatabase the documents to store, grouped by database, each list in arrival order
+     * @return for each database, one result per document in the same order,
+     * or a null list if the database is missing
+     * @throws UnavailableException if the documents cannot be accepted right now
+     */
+    Map<String, List<Object>> bulkDocsBatch(Map<String, List<Map<String, Object>>> docsByDatabase) throws UnavailableException;
+
+}
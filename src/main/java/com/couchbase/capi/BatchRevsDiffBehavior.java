@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.Map;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that can look up the
+ * revisions of documents of several databases in a single downstream
+ * operation.
+ *
+ * Used by {@link com.couchbase.capi.servlet.RevsDiffCoalescer} to turn the
+ * many small concurrent _revs_diff requests of a replication, typically one
+ * per vbucket, into one lookup.
+ */
+public interface BatchRevsDiffBehavior extends CAPIBehavior {
+
+    /**
+     * @param revsByDatabase the revisions asked about, grouped by database, in
+     *  the same form as the argument of {@link CAPIBehavior#revsDiff(String, Map)}
+     * @return for each database, the answer {@link CAPIBehavior#revsDiff(String, Map)}
+     *  would give, or a null map if the database is missing
+     * @throws UnavailableException if the revisions cannot be looked up right now
+     */
+    Map<String, Map<String, Object>> revsDiffBatch(Map<String, Map<String, Object>> revsByDatabase) throws UnavailableException;
+
+}
@@ -20,29 +20,49 @@ import java.net.NetworkInterface;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.security.HashLoginService;
 import org.eclipse.jetty.security.SecurityHandler;
 import org.eclipse.jetty.security.authentication.BasicAuthenticator;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.security.Constraint;
 import org.eclipse.jetty.util.security.Credential;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.couchbase.capi.servlet.BucketMapServlet;
 import com.couchbase.capi.servlet.CAPIServlet;
 import com.couchbase.capi.servlet.ClusterMapServlet;
 import com.couchbase.capi.servlet.StatsServlet;
+import com.couchbase.capi.servlet.TopologyStreamingServlet;
 
 public class CAPIServer extends Server {
 
+    /**
+     * Responses smaller than this many bytes are sent uncompressed by default
+     */
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+    private final CAPIServerConfig config;
     private InetAddress publishAddress;
     private InetSocketAddress bindAddress;
+    private CouchbaseBehavior couchbaseBehavior;
+    private CAPIServlet capiServlet;
+    private BucketMapServlet bucketMapServlet;
+    private TopologyStreamingServlet topologyStreamingServlet;
+    private GzipHandler gzipHandler;
+    private ServerConnector h2cConnector;
 
     public CAPIServer(CAPIBehavior capiBehavior, CouchbaseBehavior couchbaseBehavior, String username, String password) {
         this(capiBehavior, couchbaseBehavior, 0, username, password);
@@ -53,36 +73,155 @@ public class CAPIServer extends Server {
     }
 
     public CAPIServer(CAPIBehavior capiBehavior, CouchbaseBehavior couchbaseBehavior, InetSocketAddress bindAddress, String username, String password) {
-        this(capiBehavior, couchbaseBehavior, bindAddress, username, password, 1024);
+        this(capiBehavior, couchbaseBehavior, bindAddress, username, password, CAPIServerConfig.DEFAULT_NUM_VBUCKETS);
     }
 
     public CAPIServer(CAPIBehavior capiBehavior, CouchbaseBehavior couchbaseBehavior, InetSocketAddress bindAddress, String username, String password, int numVbuckets) {
-        super(bindAddress);
+        this(capiBehavior, couchbaseBehavior, bindAddress, username, password, numVbuckets, 0);
+    }
 
-        ServerConnector connector0 = new ServerConnector(this);
-        connector0.setHost(bindAddress.getHostName());
-        connector0.setPort(bindAddress.getPort());
+    /**
+     * @param metadataCacheTtlMillis if positive, answers of the CouchbaseBehavior
+     * are reused for this long, see {@link CachingCouchbaseBehavior}
+     */
+    public CAPIServer(CAPIBehavior capiBehavior, CouchbaseBehavior couchbaseBehavior, InetSocketAddress bindAddress, String username, String password, int numVbuckets, long metadataCacheTtlMillis) {
+        this(CAPIServerConfig.builder()
+                .behaviors(capiBehavior, couchbaseBehavior)
+                .credentials(username, password)
+                .bindAddress(bindAddress)
+                .numVbuckets(numVbuckets)
+                .metadataCacheTtlMillis(metadataCacheTtlMillis)
+                .build());
+    }
+
+    public CAPIServer(CAPIServerConfig config) {
+        super(new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads()));
+        this.config = config;
 
-//        connector0.setRequestBufferSize(32 * 1024);
+        CAPIBehavior capiBehavior = config.getCapiBehavior();
+        CouchbaseBehavior couchbaseBehavior = config.getCouchbaseBehavior();
+        if(config.getMetadataCacheTtlMillis() > 0) {
+            couchbaseBehavior = new CachingCouchbaseBehavior(couchbaseBehavior, config.getMetadataCacheTtlMillis());
+        }
+        this.couchbaseBehavior = couchbaseBehavior;
 
-        setConnectors(new Connector[]{ connector0 });
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setOutputBufferSize(config.getOutputBufferSize());
+        httpConfiguration.setRequestHeaderSize(config.getRequestHeaderSize());
+        httpConfiguration.setResponseHeaderSize(config.getResponseHeaderSize());
+        HttpConnectionFactory http = new HttpConnectionFactory(httpConfiguration);
+        http.setInputBufferSize(config.getInputBufferSize());
 
-        this.bindAddress = bindAddress;
+        bindAddress = config.getBindAddress();
+        ServerConnector connector0 = new ServerConnector(this, config.getAcceptors(), config.getSelectors(), http);
+        connector0.setHost(bindAddress.getHostName());
+        connector0.setPort(bindAddress.getPort());
+        connector0.setAcceptQueueSize(config.getAcceptQueueSize());
+        connector0.setIdleTimeout(config.getIdleTimeoutMillis());
+
+        if(config.getH2cPort() >= 0) {
+            HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+            if(config.getH2cInitialSessionRecvWindow() > 0) {
+                h2c.setInitialSessionRecvWindow(config.getH2cInitialSessionRecvWindow());
+            }
+            if(config.getH2cInitialStreamRecvWindow() > 0) {
+                h2c.setInitialStreamRecvWindow(config.getH2cInitialStreamRecvWindow());
+            }
+            if(config.getH2cMaxConcurrentStreams() > 0) {
+                h2c.setMaxConcurrentStreams(config.getH2cMaxConcurrentStreams());
+            }
+            if(config.getH2cStreamIdleTimeoutMillis() > 0) {
+                h2c.setStreamIdleTimeout(config.getH2cStreamIdleTimeoutMillis());
+            }
+            // HTTP/1.1 stays the default, h2c is used with prior knowledge or on upgrade
+            HttpConnectionFactory h2cHttp = new HttpConnectionFactory(httpConfiguration);
+            h2cHttp.setInputBufferSize(config.getInputBufferSize());
+            h2cConnector = new ServerConnector(this, config.getAcceptors(), config.getSelectors(), h2cHttp, h2c);
+            h2cConnector.setHost(bindAddress.getHostName());
+            h2cConnector.setPort(config.getH2cPort());
+            h2cConnector.setAcceptQueueSize(config.getAcceptQueueSize());
+            h2cConnector.setIdleTimeout(config.getIdleTimeoutMillis());
+            setConnectors(new Connector[]{ connector0, h2cConnector });
+        } else {
+            setConnectors(new Connector[]{ connector0 });
+        }
 
         ServletContextHandler context = new ServletContextHandler(
                 ServletContextHandler.SESSIONS);
         context.setContextPath("/");
-        context.setSecurityHandler(basicAuth(username, password, "Couchbase Server Admin / REST"));
-        setHandler(context);
+        context.setSecurityHandler(basicAuth(config.getUsername(), config.getPassword(), "Couchbase Server Admin / REST"));
+
+        // responses are gzipped for clients that accept it, this covers the
+        // POSTed _revs_diff and _bulk_docs results as well as the bucket maps
+        gzipHandler = new GzipHandler();
+        gzipHandler.setIncludedMethods("GET", "POST");
+        gzipHandler.setMinGzipSize(config.getCompressionMinSize());
+        // streamed configs have to reach the client as soon as they are flushed
+        gzipHandler.setExcludedPaths("/poolsStreaming/*", "/pools/default/bucketsStreaming/*");
+        gzipHandler.setHandler(context);
+        setHandler(gzipHandler);
 
-        context.addServlet(new ServletHolder(new StatsServlet(couchbaseBehavior, capiBehavior)), "/_stats");
+        capiServlet = new CAPIServlet(capiBehavior);
+
+        context.addServlet(new ServletHolder(new StatsServlet(couchbaseBehavior, capiBehavior, capiServlet,
+                this::getSettings)), "/_stats");
         context.addServlet(new ServletHolder(new ClusterMapServlet(couchbaseBehavior)),
                 "/pools/*");
-        context.addServlet(new ServletHolder(new BucketMapServlet(
-                couchbaseBehavior, numVbuckets)), "/pools/default/buckets/*");
-        context.addServlet(
-                new ServletHolder(new CAPIServlet(capiBehavior)), "/*");
+        bucketMapServlet = new BucketMapServlet(couchbaseBehavior, config.getNumVbuckets());
+        context.addServlet(new ServletHolder(bucketMapServlet), "/pools/default/buckets/*");
+        topologyStreamingServlet = new TopologyStreamingServlet(couchbaseBehavior, bucketMapServlet);
+        ServletHolder topologyStreamingHolder = new ServletHolder(topologyStreamingServlet);
+        topologyStreamingHolder.setAsyncSupported(true);
+        context.addServlet(topologyStreamingHolder, "/poolsStreaming/*");
+        context.addServlet(topologyStreamingHolder, "/pools/default/bucketsStreaming/*");
+        ServletHolder capiServletHolder = new ServletHolder(capiServlet);
+        capiServletHolder.setAsyncSupported(true);
+        context.addServlet(capiServletHolder, "/*");
+
+    }
 
+    public CAPIServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the settings in effect, as Jetty resolved them, for /_stats
+     */
+    public Map<String, Object> getSettings() {
+        Map<String, Object> result = new HashMap<>();
+        QueuedThreadPool threadPool = (QueuedThreadPool)getThreadPool();
+        result.put("min_threads", threadPool.getMinThreads());
+        result.put("max_threads", threadPool.getMaxThreads());
+        result.put("threads", threadPool.getThreads());
+        result.put("idle_threads", threadPool.getIdleThreads());
+        result.put("queued_jobs", threadPool.getQueueSize());
+
+        ServerConnector connector = (ServerConnector)getConnectors()[0];
+        result.put("acceptors", connector.getAcceptors());
+        result.put("selectors", connector.getSelectorManager().getSelectorCount());
+        result.put("accept_queue_size", connector.getAcceptQueueSize());
+        result.put("idle_timeout_millis", connector.getIdleTimeout());
+        result.put("port", connector.getLocalPort());
+
+        HttpConnectionFactory http = connector.getConnectionFactory(HttpConnectionFactory.class);
+        result.put("input_buffer_size", http.getInputBufferSize());
+        result.put("output_buffer_size", http.getHttpConfiguration().getOutputBufferSize());
+        result.put("request_header_size", http.getHttpConfiguration().getRequestHeaderSize());
+        result.put("response_header_size", http.getHttpConfiguration().getResponseHeaderSize());
+
+        if(h2cConnector != null) {
+            HTTP2CServerConnectionFactory h2c = h2cConnector.getConnectionFactory(HTTP2CServerConnectionFactory.class);
+            result.put("h2c_port", h2cConnector.getLocalPort());
+            result.put("h2c_initial_session_recv_window", h2c.getInitialSessionRecvWindow());
+            result.put("h2c_initial_stream_recv_window", h2c.getInitialStreamRecvWindow());
+            result.put("h2c_max_concurrent_streams", h2c.getMaxConcurrentStreams());
+            result.put("h2c_stream_idle_timeout_millis", h2c.getStreamIdleTimeout());
+        }
+
+        result.put("compression_min_size", getCompressionMinSize());
+        result.put("num_vbuckets", config.getNumVbuckets());
+        result.put("metadata_cache_ttl_millis", config.getMetadataCacheTtlMillis());
+        return result;
     }
 
     public int getPort() {
@@ -94,6 +233,13 @@ public class CAPIServer extends Server {
         return ((ServerConnector)connector).getLocalPort();
     }
 
+    /**
+     * @return the port of the h2c connector, -1 if there is none
+     */
+    public int getH2cPort() {
+        return h2cConnector == null ? -1 : h2cConnector.getLocalPort();
+    }
+
     /**
      * Returns the first IPv4 address we find
      *
@@ -164,4 +310,51 @@ public class CAPIServer extends Server {
     public InetSocketAddress getBindAddress() {
         return bindAddress;
     }
+
+    /**
+     * @return the CouchbaseBehavior the servlets use, a CachingCouchbaseBehavior
+     * when the metadata cache is enabled
+     */
+    public CouchbaseBehavior getCouchbaseBehavior() {
+        return couchbaseBehavior;
+    }
+
+    public CAPIServlet getCAPIServlet() {
+        return capiServlet;
+    }
+
+    /**
+     * @return the servlet serving the bucket maps, to invalidate its cached responses
+     */
+    public BucketMapServlet getBucketMapServlet() {
+        return bucketMapServlet;
+    }
+
+    /**
+     * @return the servlet streaming pool and bucket details, to notify of topology changes
+     */
+    public TopologyStreamingServlet getTopologyStreamingServlet() {
+        return topologyStreamingServlet;
+    }
+
+    public int getCompressionMinSize() {
+        return gzipHandler.getMinGzipSize();
+    }
+
+    /**
+     * Set the size from which responses are compressed, smaller responses
+     * are not worth the CPU.  Use Integer.MAX_VALUE to never compress.
+     *
+     * @param compressionMinSize the minimum response size in bytes
+     */
+    public void setCompressionMinSize(int compressionMinSize) {
+        gzipHandler.setMinGzipSize(compressionMinSize);
+    }
+
+    /**
+     * @return the handler compressing responses, for finer grained settings
+     */
+    public GzipHandler getGzipHandler() {
+        return gzipHandler;
+    }
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Everything a CAPIServer is created from, the behaviors and credentials as
+ * well as the sizing of its connector, thread pool and buffers.
+ *
+ * Built with {@link #builder()}, every setting but the behaviors and
+ * credentials has a default matching what CAPIServer used before it could be
+ * configured.  A value of -1 for the acceptors or selectors, and 0 for the
+ * accept queue, leaves the choice to Jetty and the operating system.
+ *
+ * An HTTP/2 cleartext (h2c) connector can be added next to the HTTP/1.1 one
+ * with {@link Builder#h2cPort(int)}, so that clients can multiplex many
+ * replication streams over a few connections.  It shares the thread pool,
+ * buffer sizes and timeouts, and also accepts HTTP/1.1.  Its flow control
+ * windows and stream limits left at 0 keep Jetty's defaults.
+ */
+public final class CAPIServerConfig {
+
+    public static final int DEFAULT_NUM_VBUCKETS = 1024;
+    public static final int DEFAULT_MIN_THREADS = 8;
+    public static final int DEFAULT_MAX_THREADS = 200;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_INPUT_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 32 * 1024;
+    public static final int DEFAULT_REQUEST_HEADER_SIZE = 8 * 1024;
+    public static final int DEFAULT_RESPONSE_HEADER_SIZE = 8 * 1024;
+
+    private final CAPIBehavior capiBehavior;
+    private final CouchbaseBehavior couchbaseBehavior;
+    private final String username;
+    private final String password;
+    private final InetSocketAddress bindAddress;
+    private final int numVbuckets;
+    private final long metadataCacheTtlMillis;
+    private final int minThreads;
+    private final int maxThreads;
+    private final int acceptors;
+    private final int selectors;
+    private final int acceptQueueSize;
+    private final long idleTimeoutMillis;
+    private final int inputBufferSize;
+    private final int outputBufferSize;
+    private final int requestHeaderSize;
+    private final int responseHeaderSize;
+    private final int compressionMinSize;
+    private final int h2cPort;
+    private final int h2cInitialSessionRecvWindow;
+    private final int h2cInitialStreamRecvWindow;
+    private final int h2cMaxConcurrentStreams;
+    private final long h2cStreamIdleTimeoutMillis;
+
+    private CAPIServerConfig(Builder builder) {
+        this.capiBehavior = builder.capiBehavior;
+        this.couchbaseBehavior = builder.couchbaseBehavior;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.bindAddress = builder.bindAddress;
+        this.numVbuckets = builder.numVbuckets;
+        this.metadataCacheTtlMillis = builder.metadataCacheTtlMillis;
+        this.minThreads = builder.minThreads;
+        this.maxThreads = builder.maxThreads;
+        this.acceptors = builder.acceptors;
+        this.selectors = builder.selectors;
+        this.acceptQueueSize = builder.acceptQueueSize;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.inputBufferSize = builder.inputBufferSize;
+        this.outputBufferSize = builder.outputBufferSize;
+        this.requestHeaderSize = builder.requestHeaderSize;
+        this.responseHeaderSize = builder.responseHeaderSize;
+        this.compressionMinSize = builder.compressionMinSize;
+        this.h2cPort = builder.h2cPort;
+        this.h2cInitialSessionRecvWindow = builder.h2cInitialSessionRecvWindow;
+        this.h2cInitialStreamRecvWindow = builder.h2cInitialStreamRecvWindow;
+        this.h2cMaxConcurrentStreams = builder.h2cMaxConcurrentStreams;
+        this.h2cStreamIdleTimeoutMillis = builder.h2cStreamIdleTimeoutMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public CAPIBehavior getCapiBehavior() {
+        return capiBehavior;
+    }
+
+    public CouchbaseBehavior getCouchbaseBehavior() {
+        return couchbaseBehavior;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public InetSocketAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    public int getNumVbuckets() {
+        return numVbuckets;
+    }
+
+    public long getMetadataCacheTtlMillis() {
+        return metadataCacheTtlMillis;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    public int getRequestHeaderSize() {
+        return requestHeaderSize;
+    }
+
+    public int getResponseHeaderSize() {
+        return responseHeaderSize;
+    }
+
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * @return the port of the h2c connector, -1 if there is none
+     */
+    public int getH2cPort() {
+        return h2cPort;
+    }
+
+    public int getH2cInitialSessionRecvWindow() {
+        return h2cInitialSessionRecvWindow;
+    }
+
+    public int getH2cInitialStreamRecvWindow() {
+        return h2cInitialStreamRecvWindow;
+    }
+
+    public int getH2cMaxConcurrentStreams() {
+        return h2cMaxConcurrentStreams;
+    }
+
+    public long getH2cStreamIdleTimeoutMillis() {
+        return h2cStreamIdleTimeoutMillis;
+    }
+
+    public static final class Builder {
+
+        private CAPIBehavior capiBehavior;
+        private CouchbaseBehavior couchbaseBehavior;
+        private String username;
+        private String password;
+        private InetSocketAddress bindAddress = new InetSocketAddress("0.0.0.0", 0);
+        private int numVbuckets = DEFAULT_NUM_VBUCKETS;
+        private long metadataCacheTtlMillis;
+        private int minThreads = DEFAULT_MIN_THREADS;
+        private int maxThreads = DEFAULT_MAX_THREADS;
+        private int acceptors = -1;
+        private int selectors = -1;
+        private int acceptQueueSize;
+        private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        private int inputBufferSize = DEFAULT_INPUT_BUFFER_SIZE;
+        private int outputBufferSize = DEFAULT_OUTPUT_BUFFER_SIZE;
+        private int requestHeaderSize = DEFAULT_REQUEST_HEADER_SIZE;
+        private int responseHeaderSize = DEFAULT_RESPONSE_HEADER_SIZE;
+        private int compressionMinSize = CAPIServer.DEFAULT_COMPRESSION_MIN_SIZE;
+        private int h2cPort = -1;
+        private int h2cInitialSessionRecvWindow;
+        private int h2cInitialStreamRecvWindow;
+        private int h2cMaxConcurrentStreams;
+        private long h2cStreamIdleTimeoutMillis;
+
+        private Builder() {
+        }
+
+        public Builder behaviors(CAPIBehavior capiBehavior, CouchbaseBehavior couchbaseBehavior) {
+            this.capiBehavior = capiBehavior;
+            this.couchbaseBehavior = couchbaseBehavior;
+            return this;
+        }
+
+        /**
+         * The credentials clients have to authenticate with
+         */
+        public Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        public Builder bindAddress(InetSocketAddress bindAddress) {
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        /**
+         * Listen on all interfaces, 0 picks a free port
+         */
+        public Builder port(int port) {
+            return bindAddress(new InetSocketAddress("0.0.0.0", port));
+        }
+
+        /**
+         * The number of vbuckets of buckets the CouchbaseBehavior does not give one for
+         */
+        public Builder numVbuckets(int numVbuckets) {
+            this.numVbuckets = numVbuckets;
+            return this;
+        }
+
+        /**
+         * Reuse answers of the CouchbaseBehavior for this long, 0 to always ask it
+         */
+        public Builder metadataCacheTtlMillis(long metadataCacheTtlMillis) {
+            this.metadataCacheTtlMillis = metadataCacheTtlMillis;
+            return this;
+        }
+
+        /**
+         * The size of the thread pool, acceptors and selectors run on it too
+         */
+        public Builder threads(int minThreads, int maxThreads) {
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        public Builder acceptors(int acceptors) {
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        public Builder selectors(int selectors) {
+            this.selectors = selectors;
+            return this;
+        }
+
+        /**
+         * The backlog of connections not accepted yet
+         */
+        public Builder acceptQueueSize(int acceptQueueSize) {
+            this.acceptQueueSize = acceptQueueSize;
+            return this;
+        }
+
+        /**
+         * How long an idle connection is kept open
+         */
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The buffer request bodies are read into
+         */
+        public Builder inputBufferSize(int inputBufferSize) {
+            this.inputBufferSize = inputBufferSize;
+            return this;
+        }
+
+        /**
+         * The buffer responses are written to, responses that fit are sent
+         * with a Content-Length instead of chunked
+         */
+        public Builder outputBufferSize(int outputBufferSize) {
+            this.outputBufferSize = outputBufferSize;
+            return this;
+        }
+
+        public Builder headerSizes(int requestHeaderSize, int responseHeaderSize) {
+            this.requestHeaderSize = requestHeaderSize;
+            this.responseHeaderSize = responseHeaderSize;
+            return this;
+        }
+
+        public Builder compressionMinSize(int compressionMinSize) {
+            this.compressionMinSize = compressionMinSize;
+            return this;
+        }
+
+        /**
+         * Add an h2c connector on this port of the bind address, 0 picks a free port
+         */
+        public Builder h2cPort(int h2cPort) {
+            this.h2cPort = h2cPort;
+            return this;
+        }
+
+        /**
+         * How many bytes a client may send on an h2c connection, and on each
+         * of its streams, before it has to wait for the server to read them
+         */
+        public Builder h2cFlowControl(int initialSessionRecvWindow, int initialStreamRecvWindow) {
+            this.h2cInitialSessionRecvWindow = initialSessionRecvWindow;
+            this.h2cInitialStreamRecvWindow = initialStreamRecvWindow;
+            return this;
+        }
+
+        /**
+         * How many streams a client may have open on an h2c connection, and how
+         * long one of them may be idle
+         */
+        public Builder h2cStreamLimits(int maxConcurrentStreams, long streamIdleTimeoutMillis) {
+            this.h2cMaxConcurrentStreams = maxConcurrentStreams;
+            this.h2cStreamIdleTimeoutMillis = streamIdleTimeoutMillis;
+            return this;
+        }
+
+        public CAPIServerConfig build() {
+            if(capiBehavior == null || couchbaseBehavior == null) {
+                throw new IllegalStateException("Both behaviors are required");
+            }
+            if(username == null || password == null) {
+                throw new IllegalStateException("Credentials are required");
+            }
+            if(bindAddress == null) {
+                throw new IllegalStateException("A bind address is required");
+            }
+            if(numVbuckets <= 0) {
+                throw new IllegalStateException("numVbuckets must be positive, got " + numVbuckets);
+            }
+            if(minThreads <= 0 || maxThreads < minThreads) {
+                throw new IllegalStateException("Invalid thread pool size " + minThreads + ".." + maxThreads);
+            }
+            if(acceptors == 0 || acceptors < -1 || selectors == 0 || selectors < -1) {
+                throw new IllegalStateException("Acceptors and selectors must be positive or -1");
+            }
+            if(acceptQueueSize < 0 || idleTimeoutMillis < 0) {
+                throw new IllegalStateException("The accept queue size and idle timeout must not be negative");
+            }
+            if(inputBufferSize <= 0 || outputBufferSize <= 0 || requestHeaderSize <= 0 || responseHeaderSize <= 0) {
+                throw new IllegalStateException("Buffer and header sizes must be positive");
+            }
+            if(h2cPort < -1 || h2cInitialSessionRecvWindow < 0 || h2cInitialStreamRecvWindow < 0
+                    || h2cMaxConcurrentStreams < 0 || h2cStreamIdleTimeoutMillis < 0) {
+                throw new IllegalStateException("h2c settings must not be negative");
+            }
+            if(h2cInitialSessionRecvWindow > 0 && h2cInitialStreamRecvWindow > h2cInitialSessionRecvWindow) {
+                throw new IllegalStateException("The h2c stream window cannot exceed the session window");
+            }
+            return new CAPIServerConfig(this);
+        }
+    }
+
+}
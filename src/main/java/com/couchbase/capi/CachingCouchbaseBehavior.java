@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decorates a CouchbaseBehavior, remembering its answers for a short time.
+ *
+ * The servlets ask for pools, uuids, buckets and nodes several times per
+ * request, and replicators poll continuously.  Answers, missing ones
+ * included, are reused for at most ttlMillis, and concurrent callers asking
+ * for an answer that is not cached share a single call to the behavior.
+ * Failed calls are not remembered.
+ *
+ * Topology changes the behavior notifies listeners of drop the answers for
+ * the pool right away, before the listeners registered here are notified.
+ * getStats is always passed through.
+ *
+ * Lists and maps are returned unmodifiable, as they are shared by all callers.
+ */
+public class CachingCouchbaseBehavior implements CouchbaseBehavior {
+
+    private static final class Key {
+        final String method;
+        final String pool;
+        final String bucket;
+
+        Key(String method, String pool, String bucket) {
+            this.method = method;
+            this.pool = pool;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return method.equals(other.method) && Objects.equals(pool, other.pool)
+                    && Objects.equals(bucket, other.bucket);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(method, pool, bucket);
+        }
+    }
+
+    private static final class Entry {
+        final CompletableFuture<Object> value = new CompletableFuture<>();
+        volatile long expiresNanos;
+
+        boolean isUsable(long now) {
+            // a load in progress is joined, a finished one is used until it expires
+            return !value.isDone() || (!value.isCompletedExceptionally() && now - expiresNanos < 0);
+        }
+    }
+
+    protected final CouchbaseBehavior couchbaseBehavior;
+    private final long ttlNanos;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TopologyListener, TopologyListener> listeners = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingCouchbaseBehavior(CouchbaseBehavior couchbaseBehavior, long ttlMillis) {
+        this.couchbaseBehavior = couchbaseBehavior;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        couchbaseBehavior.addTopologyListener((pool, bucket) -> invalidate(pool));
+    }
+
+    public CouchbaseBehavior getCouchbaseBehavior() {
+        return couchbaseBehavior;
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * Drop the answers about a pool, its buckets and the list of pools
+     */
+    public void invalidate(String pool) {
+        entries.keySet().removeIf(key -> key.pool == null || key.pool.equals(pool));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("size", entries.size());
+        result.put("ttl_millis", getTtlMillis());
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Key key, Supplier<T> loader) {
+        long now = System.nanoTime();
+        Entry created = new Entry();
+        Entry entry = entries.compute(key, (k, existing) ->
+                existing != null && existing.isUsable(now) ? existing : created);
+        if(entry != created) {
+            hits.incrementAndGet();
+            try {
+                return (T)entry.value.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if(cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw e;
+            }
+        }
+
+        misses.incrementAndGet();
+        T value;
+        try {
+            value = loader.get();
+        } catch (RuntimeException | Error e) {
+            entries.remove(key, created);
+            created.value.completeExceptionally(e);
+            throw e;
+        }
+        created.expiresNanos = System.nanoTime() + ttlNanos;
+        created.value.complete(value);
+        return value;
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        return list == null ? null : Collections.unmodifiableList(list);
+    }
+
+    private static Map<String, Object> unmodifiable(Map<String, Object> map) {
+        return map == null ? null : Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public List<String> getPools() {
+        return get(new Key("pools", null, null), () -> unmodifiable(couchbaseBehavior.getPools()));
+    }
+
+    @Override
+    public String getPoolUUID(String pool) {
+        return get(new Key("poolUUID", pool, null), () -> couchbaseBehavior.getPoolUUID(pool));
+    }
+
+    @Override
+    public Map<String, Object> getPoolDetails(String pool) {
+        return get(new Key("poolDetails", pool, null), () -> unmodifiable(couchbaseBehavior.getPoolDetails(pool)));
+    }
+
+    @Override
+    public List<String> getBucketsInPool(String pool) {
+        return get(new Key("buckets", pool, null), () -> unmodifiable(couchbaseBehavior.getBucketsInPool(pool)));
+    }
+
+    @Override
+    public String getBucketUUID(String pool, String bucket) {
+        return get(new Key("bucketUUID", pool, bucket), () -> couchbaseBehavior.getBucketUUID(pool, bucket));
+    }
+
+    @Override
+    public List<Map<String, Object>> getNodesServingPool(String pool) {
+        return get(new Key("nodes", pool, null), () -> {
+            List<Map<String, Object>> nodes = couchbaseBehavior.getNodesServingPool(pool);
+            if(nodes == null) {
+                return null;
+            }
+            List<Map<String, Object>> result = new ArrayList<>(nodes.size());
+            for (Map<String, Object> node : nodes) {
+                result.add(unmodifiable(node));
+            }
+            return Collections.unmodifiableList(result);
+        });
+    }
+
+    @Override
+    public int getNumVbuckets(String pool, String bucket) {
+        return get(new Key("vbuckets", pool, bucket), () -> couchbaseBehavior.getNumVbuckets(pool, bucket));
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return couchbaseBehavior.getStats();
+    }
+
+    /**
+     * Listeners are notified after the cached answers about the pool are dropped
+     */
+    @Override
+    public void addTopologyListener(TopologyListener listener) {
+        TopologyListener wrapped = (pool, bucket) -> {
+            invalidate(pool);
+            listener.topologyChanged(pool, bucket);
+        };
+        if(listeners.putIfAbsent(listener, wrapped) == null) {
+            couchbaseBehavior.addTopologyListener(wrapped);
+        }
+    }
+
+    @Override
+    public void removeTopologyListener(TopologyListener listener) {
+        TopologyListener wrapped = listeners.remove(listener);
+        if(wrapped != null) {
+            couchbaseBehavior.removeTopologyListener(wrapped);
+        }
+    }
+
+}
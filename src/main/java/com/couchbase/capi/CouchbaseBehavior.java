@@ -18,6 +18,18 @@ import java.util.Map;
 
 public interface CouchbaseBehavior {
 
+    /**
+     * Notified when the nodes serving a pool, or its buckets, change
+     */
+    interface TopologyListener {
+
+        /**
+         * @param pool the pool that changed
+         * @param bucket the bucket that changed, or null if the whole pool may have
+         */
+        void topologyChanged(String pool, String bucket);
+    }
+
     List<String> getPools();
 
     String getPoolUUID(String pool);
@@ -30,5 +42,24 @@ public interface CouchbaseBehavior {
 
     List<Map<String, Object>> getNodesServingPool(String pool);
 
+    /**
+     * @return the number of vbuckets of the bucket, or 0 to use the number
+     * the server was created with
+     */
+    default int getNumVbuckets(String pool, String bucket) {
+        return 0;
+    }
+
     Map<String, Object> getStats();
+
+    /**
+     * Register a listener for topology changes.  Behaviors that never notify
+     * can ignore this, streaming clients then see changes on the next
+     * periodic check instead of right away.
+     */
+    default void addTopologyListener(TopologyListener listener) {
+    }
+
+    default void removeTopologyListener(TopologyListener listener) {
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.List;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that forward document
+ * bodies without looking at them.
+ *
+ * When the CAPIBehavior passed to the server implements this interface,
+ * _bulk_docs only parses the meta of each document; the body is handed over
+ * as the untouched bytes of the request.  This takes precedence over
+ * {@link StreamingBulkDocsBehavior}, as the whole request has to be buffered
+ * for the bodies to be sliced out of it.
+ */
+public interface RawBulkDocsBehavior extends CAPIBehavior {
+
+    /**
+     * @param database the database the request was sent to
+     * @param docs the documents of the request, in request order
+     * @return one result per document, in the same order, or null if the database is missing
+     * @throws UnavailableException if the documents cannot be accepted right now
+     */
+    List<Object> bulkDocsRaw(String database, List<RawDocument> docs) throws UnavailableException;
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A document from a _bulk_docs request whose body has not been parsed.
+ *
+ * The body is a read-only view over the request buffer and is only valid for
+ * the duration of the {@link RawBulkDocsBehavior#bulkDocsRaw(String, java.util.List)}
+ * call it was passed to.  Copy it if it has to outlive that call.
+ */
+public class RawDocument {
+
+    private final Map<String, Object> meta;
+    private final String bodyField;
+    private final ByteBuffer body;
+
+    public RawDocument(Map<String, Object> meta, String bodyField, ByteBuffer body) {
+        this.meta = meta;
+        this.bodyField = bodyField;
+        this.body = body.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the parsed meta object, or null if the document did not have one
+     */
+    public Map<String, Object> getMeta() {
+        return meta;
+    }
+
+    /**
+     * @return the field the body was taken from ("json" or "base64"), or null
+     * if the body is the whole document
+     */
+    public String getBodyField() {
+        return bodyField;
+    }
+
+    /**
+     * @return the encoded JSON value of the body, exactly as it appeared in the request.
+     * For "base64" bodies this is the quoted JSON string.
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    /**
+     * @return the document id from the meta object, or null if there is no meta
+     */
+    public String getId() {
+        if(meta != null) {
+            return (String)meta.get("id");
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "RawDocument [meta=" + meta + ", bodyField=" + bodyField + ", bodyLength=" + body.remaining() + "]";
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that want _bulk_docs
+ * documents delivered incrementally.
+ *
+ * When the CAPIBehavior passed to the server implements this interface, the
+ * request body is parsed as a stream and the documents are handed over in
+ * chunks of at most {@link com.couchbase.capi.servlet.CAPIServlet#getBulkDocsChunkSize()}
+ * documents, so the request is never held in memory as a whole.
+ */
+public interface StreamingBulkDocsBehavior extends CAPIBehavior {
+
+    /**
+     * Process the next chunk of documents of a _bulk_docs request.
+     *
+     * @param database the database the request was sent to
+     * @param docs the documents of this chunk, in request order
+     * @return one result per document, in the same order, or null if the database is missing
+     * @throws UnavailableException if the documents cannot be accepted right now
+     */
+    List<Object> bulkDocsChunk(String database, List<Map<String, Object>> docs) throws UnavailableException;
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Optional extension of CAPIBehavior for behaviors that want _revs_diff
+ * questions delivered incrementally.
+ *
+ * When the CAPIBehavior passed to the server implements this interface, the
+ * request body is parsed as a stream and the document ids are handed over
+ * in chunks of at most {@link com.couchbase.capi.servlet.CAPIServlet#getRevsDiffChunkSize()}
+ * ids.  The answer for each chunk is written out before the next chunk is
+ * read, so neither the request nor the response is held in memory as a whole.
+ */
+public interface StreamingRevsDiffBehavior extends CAPIBehavior {
+
+    /**
+     * Find the revisions of the next chunk of documents that are missing.
+     *
+     * @param database the database the request was sent to
+     * @param revs the revisions asked about for each document id, in request order
+     * @return the missing revisions for each document id, ids with no missing
+     *  revisions may be left out, or null if the database is missing
+     * @throws UnavailableException if the question cannot be answered right now
+     */
+    Map<String, List<String>> revsDiffChunk(String database, Map<String, List<String>> revs) throws UnavailableException;
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrency limit adjusted by additive increase, multiplicative decrease.
+ *
+ * Every request completing within latencyThresholdMillis while the limit is
+ * in use grows the limit by 1/limit, so by about one per round of requests.
+ * A request that is slower than that, or that the behavior rejected as
+ * unavailable, shrinks the limit by backoffRatio.  The limit stays within
+ * [minLimit, maxLimit].
+ *
+ * Latency is measured from the moment the permit is started, so the time
+ * spent reading the request body does not count.  A permit released without
+ * having been started only frees its slot.
+ */
+public class AIMDAdmissionController implements AdmissionController {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private final int retryAfterSeconds;
+
+    private double limit;
+    private int inFlight;
+
+    private long admitted;
+    private long rejected;
+    private long overloaded;
+
+    public AIMDAdmissionController() {
+        this(20, 1, 200, 0.9, 5000, 1);
+    }
+
+    /**
+     * @param initialLimit the concurrency limit to start with
+     * @param minLimit the limit never drops below this
+     * @param maxLimit the limit never grows above this
+     * @param backoffRatio factor applied to the limit on overload, between 0 and 1
+     * @param latencyThresholdMillis requests slower than this count as overload
+     * @param retryAfterSeconds the Retry-After hint sent with rejections
+     */
+    public AIMDAdmissionController(int initialLimit, int minLimit, int maxLimit,
+            double backoffRatio, long latencyThresholdMillis, int retryAfterSeconds) {
+        if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if(backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public synchronized Permit tryAcquire() {
+        if(inFlight >= (int)limit) {
+            rejected++;
+            return null;
+        }
+        inFlight++;
+        admitted++;
+        return new AIMDPermit();
+    }
+
+    private synchronized void release(long latencyNanos, boolean isOverloaded) {
+        int inFlightBefore = inFlight;
+        inFlight--;
+        if(latencyNanos < 0 && !isOverloaded) {
+            // never started, there is no latency sample
+            return;
+        }
+        if(isOverloaded || latencyNanos > latencyThresholdNanos) {
+            overloaded++;
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else if(inFlightBefore * 2 >= limit) {
+            // only grow while the limit is actually being used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    @Override
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("limit", (int)limit);
+        result.put("in_flight", inFlight);
+        result.put("admitted", admitted);
+        result.put("rejected", rejected);
+        result.put("overloaded", overloaded);
+        return result;
+    }
+
+    private class AIMDPermit implements Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile long start;
+        private volatile boolean started;
+
+        @Override
+        public void started() {
+            if(!started) {
+                start = System.nanoTime();
+                started = true;
+            }
+        }
+
+        @Override
+        public void release(boolean isOverloaded) {
+            if(released.compareAndSet(false, true)) {
+                AIMDAdmissionController.this.release(started ? System.nanoTime() - start : -1, isOverloaded);
+            }
+        }
+    }
+}
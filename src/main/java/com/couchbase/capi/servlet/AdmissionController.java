@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.Map;
+
+/**
+ * Decides whether a _bulk_docs or _revs_diff request is let in.
+ *
+ * CAPIServlet asks for a permit before the request body is read, rejects the
+ * request with 503 and a Retry-After header if there is none, marks the permit
+ * started once the body is read and the behavior is about to be called, and
+ * releases it once the behavior has completed.
+ */
+public interface AdmissionController {
+
+    interface Permit {
+
+        /**
+         * Called right before the behavior is called, after the request body
+         * has been read, so that slow uploads are not mistaken for a slow
+         * behavior.  May be called more than once; only the first call counts.
+         */
+        default void started() {
+        }
+
+        /**
+         * Releasing a permit more than once has no effect.
+         *
+         * @param overloaded true if the request failed because the behavior was unavailable
+         */
+        void release(boolean overloaded);
+    }
+
+    /**
+     * @return a permit to process a request, or null to reject it
+     */
+    Permit tryAcquire();
+
+    /**
+     * @return the number of seconds rejected clients are asked to wait before retrying
+     */
+    int getRetryAfterSeconds();
+
+    Map<String, Object> getStats();
+
+}
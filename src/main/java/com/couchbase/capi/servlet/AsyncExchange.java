@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One asynchronous request/response exchange.
+ *
+ * The request body is collected with a ReadListener, and the response is
+ * written with a WriteListener, so no thread is held while waiting on the
+ * client or on the behavior.  Exactly one response is sent per exchange,
+ * whichever of completion, failure or timeout happens first.
+ */
+class AsyncExchange implements ReadListener, WriteListener, AsyncListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncExchange.class);
+
+    interface BodyHandler {
+        void onBody(RequestBody body) throws Exception;
+    }
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse resp;
+    private final byte[] timeoutBody;
+    private final AtomicBoolean responded = new AtomicBoolean();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private ServletInputStream input;
+    private ContentCoding coding;
+    private BufferPool pool;
+    private int maxLength;
+    private RequestBody body;
+    private final byte[] readBuffer = new byte[8192];
+    private BodyHandler bodyHandler;
+
+    private ServletOutputStream output;
+    private byte[] responseBody;
+    private int written;
+
+    private AsyncExchange(AsyncContext asyncContext, HttpServletResponse resp, byte[] timeoutBody) {
+        this.asyncContext = asyncContext;
+        this.resp = resp;
+        this.timeoutBody = timeoutBody;
+    }
+
+    /**
+     * Put the request in asynchronous mode
+     *
+     * @param timeout milliseconds after which the request is answered with 503 and timeoutBody
+     */
+    static AsyncExchange start(HttpServletRequest req, HttpServletResponse resp, long timeout, byte[] timeoutBody) {
+        AsyncExchange exchange = new AsyncExchange(req.startAsync(req, resp), resp, timeoutBody);
+        exchange.asyncContext.setTimeout(timeout);
+        exchange.asyncContext.addListener(exchange);
+        return exchange;
+    }
+
+    /**
+     * Read the whole request body into a pooled buffer without blocking, then
+     * hand it to the handler.  The buffer is released once the exchange is complete.
+     *
+     * A compressed body is collected as is and decoded into a second buffer
+     * once it is complete, the compressed buffer is released right away.
+     * A body larger than maxLength is answered with 413.
+     */
+    void readBody(HttpServletRequest req, ContentCoding coding, BufferPool pool, int maxLength,
+            BodyHandler handler) throws IOException {
+        this.coding = coding;
+        this.pool = pool;
+        this.maxLength = maxLength;
+        try {
+            this.body = new RequestBody(pool, req.getContentLength(), -1, maxLength);
+        } catch (RequestBodyTooLargeException e) {
+            fail(e);
+            return;
+        }
+        this.bodyHandler = handler;
+        this.input = req.getInputStream();
+        input.setReadListener(this);
+    }
+
+    HttpServletResponse getResponse() {
+        return resp;
+    }
+
+    /**
+     * Send a JSON response and complete the exchange
+     */
+    void send(int status, byte[] responseBody) {
+        if(!responded.compareAndSet(false, true)) {
+            return;
+        }
+        resp.setStatus(status);
+        resp.setContentType("application/json");
+        resp.setContentLength(responseBody.length);
+        this.responseBody = responseBody;
+        try {
+            output = resp.getOutputStream();
+            output.setWriteListener(this);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("unable to write asynchronous response", e);
+            complete();
+        }
+    }
+
+    /**
+     * Answer with 500, or 413 for a body that is too large, if nothing was sent
+     * yet, and complete the exchange
+     */
+    void fail(Throwable t) {
+        if(t instanceof RequestBodyTooLargeException) {
+            logger.debug("rejecting request", t);
+            send(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, JsonResponses.TOO_LARGE);
+            return;
+        }
+        logger.warn("asynchronous request failed", t);
+        if(responded.compareAndSet(false, true)) {
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        complete();
+    }
+
+    private void complete() {
+        if(completed.compareAndSet(false, true)) {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+        if(body != null) {
+            body.close();
+        }
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        int read;
+        try {
+            while(input.isReady() && (read = input.read(readBuffer)) != -1) {
+                body.append(readBuffer, 0, read);
+            }
+        } catch (RequestBodyTooLargeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        if(responded.get()) {
+            // rejected while it was read
+            return;
+        }
+        try {
+            body.checkComplete();
+            if(coding != ContentCoding.IDENTITY) {
+                RequestBody encoded = body;
+                body = null;
+                try (InputStream decoded = coding.decode(encoded.asInputStream())) {
+                    body = RequestBody.read(decoded, -1, encoded.length(), pool, maxLength);
+                } finally {
+                    encoded.close();
+                }
+            }
+            bodyHandler.onBody(body);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while(output.isReady()) {
+            if(written == responseBody.length) {
+                complete();
+                return;
+            }
+            int length = Math.min(responseBody.length - written, 8192);
+            output.write(responseBody, written, length);
+            written += length;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        // the container expects the exchange to be completed from within this callback,
+        // so this response is written with blocking I/O
+        if(responded.compareAndSet(false, true)) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setContentType("application/json");
+            try {
+                resp.getOutputStream().write(timeoutBody);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("unable to write timeout response", e);
+            }
+        }
+        complete();
+    }
+
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        fail(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects requests submitted by concurrent callers and hands them to
+ * {@link #flush(List)} in batches.
+ *
+ * A batch is flushed once its total weight reaches maxBatchWeight, or once
+ * the oldest request in it has waited lingerMillis.  Batches are flushed one
+ * at a time by a single thread, requests arriving during a flush make up the
+ * next batch.  Requests for the same database are therefore flushed in the
+ * order they were submitted.
+ *
+ * @param <T> the request payload
+ * @param <R> the per-request result
+ */
+public abstract class BatchingStage<T, R> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchingStage.class);
+
+    protected final int maxBatchWeight;
+    protected final long lingerMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingChanged = lock.newCondition();
+    private List<Pending<T, R>> pending = new ArrayList<>();
+    private int pendingWeight;
+    private long oldestPendingNanos;
+    private boolean closed;
+
+    private final Thread flusher;
+
+    private final AtomicLong batchesFlushed = new AtomicLong();
+    private final AtomicLong requestsFlushed = new AtomicLong();
+    private final AtomicLong weightFlushed = new AtomicLong();
+
+    protected BatchingStage(String name, int maxBatchWeight, long lingerMillis) {
+        if(maxBatchWeight < 1) {
+            throw new IllegalArgumentException("maxBatchWeight must be positive");
+        }
+        if(lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative");
+        }
+        this.maxBatchWeight = maxBatchWeight;
+        this.lingerMillis = lingerMillis;
+        this.flusher = new Thread(this::runFlusher, name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * A request waiting to be flushed
+     */
+    protected static class Pending<T, R> {
+        public final String database;
+        public final T payload;
+        public final int weight;
+        public final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Pending(String database, T payload, int weight) {
+            this.database = database;
+            this.payload = payload;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @return the weight of a payload, for example its number of documents
+     */
+    protected abstract int weigh(T payload);
+
+    /**
+     * Process a batch, completing the result of every request in it
+     */
+    protected abstract void flush(List<Pending<T, R>> batch);
+
+    public CompletableFuture<R> submit(String database, T payload) {
+        Pending<T, R> request = new Pending<>(database, payload, weigh(payload));
+        lock.lock();
+        try {
+            if(closed) {
+                request.result.completeExceptionally(new IllegalStateException("batching stage is closed"));
+                return request.result;
+            }
+            if(pending.isEmpty()) {
+                oldestPendingNanos = System.nanoTime();
+            }
+            pending.add(request);
+            pendingWeight += request.weight;
+            pendingChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+        return request.result;
+    }
+
+    private void runFlusher() {
+        while(true) {
+            List<Pending<T, R>> batch;
+            lock.lock();
+            try {
+                while(!closed && !readyToFlush()) {
+                    if(pending.isEmpty()) {
+                        pendingChanged.await();
+                    } else {
+                        long remaining = TimeUnit.MILLISECONDS.toNanos(lingerMillis) - (System.nanoTime() - oldestPendingNanos);
+                        pendingChanged.awaitNanos(remaining);
+                    }
+                }
+                if(closed && pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                pendingWeight = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            flushBatch(batch);
+        }
+    }
+
+    private boolean readyToFlush() {
+        if(pending.isEmpty()) {
+            return false;
+        }
+        return pendingWeight >= maxBatchWeight
+                || System.nanoTime() - oldestPendingNanos >= TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    private void flushBatch(List<Pending<T, R>> batch) {
+        long weight = 0;
+        for (Pending<T, R> request : batch) {
+            weight += request.weight;
+        }
+        logger.trace("flushing batch of {} requests with weight {}", batch.size(), weight);
+        // counted first, so a caller woken by its result already sees its batch
+        batchesFlushed.incrementAndGet();
+        requestsFlushed.addAndGet(batch.size());
+        weightFlushed.addAndGet(weight);
+        try {
+            flush(batch);
+        } catch (RuntimeException e) {
+            logger.warn("error flushing batch", e);
+            for (Pending<T, R> request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("batches_flushed", batchesFlushed.get());
+        result.put("requests_flushed", requestsFlushed.get());
+        result.put("weight_flushed", weightFlushed.get());
+        lock.lock();
+        try {
+            result.put("requests_pending", pending.size());
+            result.put("weight_pending", pendingWeight);
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Flush what is pending and stop the flushing thread
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pendingChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -16,6 +16,8 @@ package com.couchbase.capi.servlet;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -37,6 +39,12 @@ import com.couchbase.capi.CouchbaseBehavior;
  * AND
  * /.../buckets/default
  *
+ * Replicators poll these continuously, so the serialized responses are
+ * cached along with the topology they were built from, the bucket uuid and
+ * the nodes serving the pool.  A poll against an unchanged topology is a copy
+ * of the cached bytes, or a 304 when the client sends the ETag it already has
+ * in If-None-Match.
+ *
  * @author mschoch
  *
  */
@@ -50,6 +58,33 @@ public class BucketMapServlet extends HttpServlet {
 
     protected CouchbaseBehavior couchbaseBehavior;
 
+    protected volatile VBucketMapStrategy vBucketMapStrategy = new ModuloVBucketMapStrategy();
+
+    /**
+     * A serialized response and the topology it was built from
+     */
+    protected static final class CachedBody {
+        final Object topology;
+        final byte[] body;
+        final String etag;
+
+        CachedBody(Object topology, byte[] body) {
+            this.topology = topology;
+            this.body = body;
+            this.etag = etag(body);
+        }
+    }
+
+    /**
+     * Cached responses by pool for the bucket list and by pool and bucket for
+     * the bucket details
+     */
+    protected final ConcurrentHashMap<String, CachedBody> cachedBodies = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
     public BucketMapServlet(CouchbaseBehavior couchbaseBehavior) {
         this.couchbaseBehavior = couchbaseBehavior;
     }
@@ -59,6 +94,45 @@ public class BucketMapServlet extends HttpServlet {
         this.numVbuckets = numVbuckets;
     }
 
+    public VBucketMapStrategy getVBucketMapStrategy() {
+        return vBucketMapStrategy;
+    }
+
+    /**
+     * Set how vbuckets are assigned to servers.  Nodes may carry a numeric
+     * "weight", their relative capacity, which defaults to 1.
+     */
+    public void setVBucketMapStrategy(VBucketMapStrategy vBucketMapStrategy) {
+        this.vBucketMapStrategy = vBucketMapStrategy;
+        invalidateAll();
+    }
+
+    /**
+     * Drop the cached responses of a bucket, and of the bucket list of its pool.
+     * Changes of the bucket uuid or of the nodes are noticed without this, it
+     * is for changes that only affect what buildBucketDetailsMap produces.
+     */
+    public void invalidate(String pool, String bucket) {
+        cachedBodies.remove(key(pool, bucket));
+        cachedBodies.remove(pool);
+    }
+
+    /**
+     * Drop all cached responses
+     */
+    public void invalidateAll() {
+        cachedBodies.clear();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("cached_responses", cachedBodies.size());
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("not_modified", notModified.get());
+        return result;
+    }
+
     /**
      * Handle get requests for the matching URLs and direct to the right handler method.
      */
@@ -67,15 +141,14 @@ public class BucketMapServlet extends HttpServlet {
             throws ServletException, IOException {
 
         String bucket = req.getPathInfo();
-        OutputStream os = resp.getOutputStream();
 
         if (bucket == null || bucket.equals("/")) {
             String uuid = req.getParameter("uuid");
-            executeBucketsRequest(resp, os, "default", uuid);
+            executeBucketsRequest(req, resp, "default", uuid);
         } else {
             String bucketUUID = req.getParameter("bucket_uuid");
             bucket = getDatabaseNameFromPath(removePathSuffix(bucket, "/"));
-            executeBucketRequest(resp, os, "default", bucket, bucketUUID);
+            executeBucketRequest(req, resp, "default", bucket, bucketUUID);
         }
     }
 
@@ -83,14 +156,12 @@ public class BucketMapServlet extends HttpServlet {
      * Using the connection manager, find the client ids of the active connections
      * and return this as a list of a valid buckets.
      *
-     * @param os
      * @throws IOException
      */
-    protected void executeBucketsRequest(HttpServletResponse resp, OutputStream os, String pool, String uuid) throws IOException {
+    protected void executeBucketsRequest(HttpServletRequest req, HttpServletResponse resp,
+            String pool, String uuid) throws IOException {
         logger.trace("asked for bucket list");
 
-        List<Object> buckets = new ArrayList<>();
-
         List<String> bucketNames = couchbaseBehavior.getBucketsInPool(pool);
 
         if(uuid != null) {
@@ -98,26 +169,28 @@ public class BucketMapServlet extends HttpServlet {
             String poolUUID = couchbaseBehavior.getPoolUUID(pool);
             if(!uuid.equals(poolUUID)) {
                 resp.setStatus(404);
+                OutputStream os = resp.getOutputStream();
                 os.write("Cluster uuid does not match the requested.".getBytes());
                 os.close();
             } else {
-                formatBuckets(resp, os, pool, buckets, bucketNames);
+                formatBuckets(req, resp, pool, bucketNames);
             }
         } else {
-            formatBuckets(resp, os, pool, buckets, bucketNames);
+            formatBuckets(req, resp, pool, bucketNames);
         }
     }
 
-    protected void formatBuckets(HttpServletResponse resp, OutputStream os, String pool,
-            List<Object> buckets, List<String> bucketNames) throws IOException {
+    protected void formatBuckets(HttpServletRequest req, HttpServletResponse resp, String pool,
+            List<String> bucketNames) throws IOException {
         if(bucketNames != null) {
+            // the nodes are the same for every bucket of the pool
+            List<Map<String, Object>> nodes = couchbaseBehavior.getNodesServingPool(pool);
+            List<CachedBody> buckets = new ArrayList<>(bucketNames.size());
             for (String bucketName : bucketNames) {
                 String actualBucketUUID = couchbaseBehavior.getBucketUUID(pool, bucketName);
-                List<Map<String, Object>> nodes = couchbaseBehavior.getNodesServingPool(pool);
-                Map<String, Object> bucket = buildBucketDetailsMap(bucketName, nodes, actualBucketUUID);
-                buckets.add(bucket);
+                buckets.add(getBucketBody(pool, bucketName, nodes, actualBucketUUID));
             }
-            mapper.writeValue(os, buckets);
+            sendBody(req, resp, getBucketsBody(pool, buckets));
         } else {
             resp.setStatus(404);
         }
@@ -126,12 +199,9 @@ public class BucketMapServlet extends HttpServlet {
     /**
      * Return a fake bucket map for the requested bucket.
      *
-     * @param resp
-     * @param os
-     * @param bucket
      * @throws IOException
      */
-    protected void executeBucketRequest(HttpServletResponse resp, final OutputStream os,
+    protected void executeBucketRequest(HttpServletRequest req, HttpServletResponse resp,
             final String pool, final String bucket, String bucketUUID) throws IOException {
 
         String actualBucketUUID = couchbaseBehavior.getBucketUUID(pool, bucket);
@@ -146,31 +216,150 @@ public class BucketMapServlet extends HttpServlet {
             //if a bucket uuid is provided, make sure it matches the buckets uuid
             if(!bucketUUID.equals(actualBucketUUID)) {
                 resp.setStatus(404);
+                OutputStream os = resp.getOutputStream();
                 os.write("Bucket uuid does not match the requested.".getBytes());
                 os.close();
             } else {
-                formatBucket(resp, os, bucket, nodes, actualBucketUUID);
+                formatBucket(req, resp, pool, bucket, nodes, actualBucketUUID);
             }
         } else {
-            formatBucket(resp, os, bucket, nodes, actualBucketUUID);
+            formatBucket(req, resp, pool, bucket, nodes, actualBucketUUID);
         }
     }
 
-    protected void formatBucket(HttpServletResponse resp, final OutputStream os, final String bucket,
-            List<Map<String, Object>> nodes, String actualBucketUUID) throws IOException {
+    protected void formatBucket(HttpServletRequest req, HttpServletResponse resp, String pool,
+            final String bucket, List<Map<String, Object>> nodes, String actualBucketUUID) throws IOException {
 
         if(nodes != null) {
-            Map<String, Object> responseMap = buildBucketDetailsMap(bucket,
-                    nodes, actualBucketUUID);
-
-            mapper.writeValue(os, responseMap);
+            sendBody(req, resp, getBucketBody(pool, bucket, nodes, actualBucketUUID));
         } else {
             resp.setStatus(404);
         }
     }
 
+    /**
+     * @return the serialized bucket details, from the cache if the topology is unchanged
+     */
+    protected CachedBody getBucketBody(String pool, String bucket,
+            List<Map<String, Object>> nodes, String actualBucketUUID) throws IOException {
+        String key = key(pool, bucket);
+        int vbuckets = getNumVbuckets(pool, bucket);
+        List<Object> topology = Arrays.asList(actualBucketUUID, vbuckets, nodes);
+        CachedBody cached = cachedBodies.get(key);
+        if(cached != null && cached.topology.equals(topology)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        byte[] body = mapper.writeValueAsBytes(buildBucketDetailsMap(bucket, nodes, actualBucketUUID, vbuckets));
+        cached = new CachedBody(Arrays.asList(actualBucketUUID, vbuckets, copyNodes(nodes)), body);
+        cachedBodies.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * @return the serialized bucket list, reused as long as every bucket's body is
+     */
+    protected CachedBody getBucketsBody(String pool, List<CachedBody> buckets) {
+        CachedBody cached = cachedBodies.get(pool);
+        // bodies are compared by identity, they are only replaced when rebuilt
+        if(cached != null && cached.topology.equals(buckets)) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        int length = 2 + Math.max(0, buckets.size() - 1);
+        for (CachedBody bucket : buckets) {
+            length += bucket.body.length;
+        }
+        byte[] body = new byte[length];
+        int offset = 0;
+        body[offset++] = '[';
+        for (CachedBody bucket : buckets) {
+            if(offset > 1) {
+                body[offset++] = ',';
+            }
+            System.arraycopy(bucket.body, 0, body, offset, bucket.body.length);
+            offset += bucket.body.length;
+        }
+        body[offset] = ']';
+        cached = new CachedBody(buckets, body);
+        cachedBodies.put(pool, cached);
+        return cached;
+    }
+
+    protected void sendBody(HttpServletRequest req, HttpServletResponse resp, CachedBody body)
+            throws IOException {
+        resp.setHeader("ETag", body.etag);
+        if(matches(req.getHeader("If-None-Match"), body.etag)) {
+            notModified.incrementAndGet();
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType("application/json");
+        resp.setContentLength(body.body.length);
+        resp.getOutputStream().write(body.body);
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a strong entity tag, a 64-bit FNV-1a hash of the body
+     */
+    private static String etag(byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    private static String key(String pool, String bucket) {
+        return pool + '\u0000' + bucket;
+    }
+
+    private static List<Map<String, Object>> copyNodes(List<Map<String, Object>> nodes) {
+        List<Map<String, Object>> copy = new ArrayList<>(nodes.size());
+        for (Map<String, Object> node : nodes) {
+            copy.add(new HashMap<>(node));
+        }
+        return copy;
+    }
+
+    /**
+     * @return the number of vbuckets of the bucket, as given by the behavior
+     * or else the number this servlet was created with
+     */
+    protected int getNumVbuckets(String pool, String bucket) {
+        int vbuckets = couchbaseBehavior.getNumVbuckets(pool, bucket);
+        return vbuckets > 0 ? vbuckets : numVbuckets;
+    }
+
     protected Map<String, Object> buildBucketDetailsMap(final String bucket,
             List<Map<String, Object>> nodes, String actualBucketUUID) {
+        return buildBucketDetailsMap(bucket, nodes, actualBucketUUID, numVbuckets);
+    }
+
+    protected Map<String, Object> buildBucketDetailsMap(final String bucket,
+            List<Map<String, Object>> nodes, String actualBucketUUID, int vbuckets) {
+
+        // the nodes belong to the behavior and are shared by all buckets of the pool
+        nodes = copyNodes(nodes);
 
         // Sort the nodes list by hostname to make sure the nodes map is consistent across requests
         Collections.sort(nodes, (node1, node2) -> {
@@ -180,7 +369,10 @@ public class BucketMapServlet extends HttpServlet {
         });
 
         List<String> serverList = new ArrayList<>();
+        double[] weights = new double[nodes.size()];
         for (Map<String, Object> node : nodes) {
+            Object weight = node.get("weight");
+            weights[serverList.size()] = weight instanceof Number ? ((Number)weight).doubleValue() : 1;
             serverList.add(node.get("hostname").toString());
             //add the bucket name to the node's couchApiBase
             String couchApiBase = (String)node.get("couchApiBase");
@@ -190,13 +382,9 @@ public class BucketMapServlet extends HttpServlet {
         // Sort the server list in ascending order to make sure the vBucket map is consistent across requests
         Collections.sort(serverList);
 
-        List<Object> vBucketMap = new ArrayList<>();
-        for(int i=0; i < numVbuckets; i++) {
-            List<Object> vbucket = new ArrayList<>();
-            vbucket.add(i%serverList.size());
-            vbucket.add(-1);
-            vBucketMap.add(vbucket);
-        }
+        // the active copies, and one replica that no server holds
+        int[] active = vBucketMapStrategy.assign(bucket, serverList, weights, vbuckets);
+        VBucketMap vBucketMap = new VBucketMap(vbuckets, active, null);
 
         Map<String, Object> vbucketServerMap = new HashMap<>();
         vbucketServerMap.put("serverList", serverList);
@@ -207,6 +395,7 @@ public class BucketMapServlet extends HttpServlet {
         responseMap.put("vBucketServerMap", vbucketServerMap);
         responseMap.put("name", bucket);
         responseMap.put("uri", "/pools/default/buckets/" + bucket + "?bucket_uuid=" + actualBucketUUID);
+        responseMap.put("streamingUri", "/pools/default/bucketsStreaming/" + bucket + "?bucket_uuid=" + actualBucketUUID);
         responseMap.put("uuid", actualBucketUUID);
         responseMap.put("bucketType", "membase");
 	    responseMap.put("saslPassword", "");
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of request buffers in power of two size classes.
+ *
+ * Buffers from minBufferSize up to maxPooledBufferSize are recycled, at most
+ * maxBuffersPerClass of each size are kept.  Larger requests get a buffer of
+ * their own that is left to the garbage collector.  Buffers are either heap
+ * or direct, direct buffers keep request bodies out of the Java heap
+ * entirely at the cost of an extra copy when they are parsed.
+ */
+public class BufferPool {
+
+    private final boolean direct;
+    private final int minBufferSize;
+    private final int maxPooledBufferSize;
+    private final int maxBuffersPerClass;
+    private final int minShift;
+
+    private final List<Queue<ByteBuffer>> freeBuffers;
+    private final AtomicInteger[] freeCounts;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    /**
+     * Heap buffers from 4KB to 4MB, up to 64 of each size
+     */
+    public BufferPool() {
+        this(false, 4 * 1024, 4 * 1024 * 1024, 64);
+    }
+
+    /**
+     * @param direct use direct instead of heap buffers
+     * @param minBufferSize the smallest buffer handed out, rounded up to a power of two
+     * @param maxPooledBufferSize buffers larger than this are not recycled, rounded up to a power of two
+     * @param maxBuffersPerClass the maximum number of idle buffers kept per size
+     */
+    public BufferPool(boolean direct, int minBufferSize, int maxPooledBufferSize, int maxBuffersPerClass) {
+        if(minBufferSize < 1 || maxPooledBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("buffer sizes must satisfy 1 <= minBufferSize <= maxPooledBufferSize");
+        }
+        this.direct = direct;
+        this.minBufferSize = roundUp(minBufferSize);
+        this.maxPooledBufferSize = roundUp(maxPooledBufferSize);
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.minShift = Integer.numberOfTrailingZeros(this.minBufferSize);
+
+        int numClasses = Integer.numberOfTrailingZeros(this.maxPooledBufferSize) - minShift + 1;
+        freeBuffers = new ArrayList<>(numClasses);
+        freeCounts = new AtomicInteger[numClasses];
+        for(int i = 0; i < numClasses; i++) {
+            freeBuffers.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    public int getMaxPooledBufferSize() {
+        return maxPooledBufferSize;
+    }
+
+    /**
+     * @return a cleared buffer with at least the requested capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.incrementAndGet();
+        int size = Math.max(minBufferSize, capacity);
+        if(size > maxPooledBufferSize) {
+            allocated.incrementAndGet();
+            return allocate(size);
+        }
+        size = roundUp(size);
+        int sizeClass = Integer.numberOfTrailingZeros(size) - minShift;
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+        if(buffer == null) {
+            allocated.incrementAndGet();
+            return allocate(size);
+        }
+        freeCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from acquire, it must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if(buffer.isDirect() != direct || capacity > maxPooledBufferSize || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(capacity) - minShift;
+        if(sizeClass < 0) {
+            return;
+        }
+        if(freeCounts[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        released.incrementAndGet();
+        freeBuffers.get(sizeClass).offer(buffer);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int roundUp(int size) {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    public Map<String, Object> getStats() {
+        long pooledBytes = 0;
+        int pooledBuffers = 0;
+        for(int i = 0; i < freeCounts.length; i++) {
+            int count = freeCounts[i].get();
+            pooledBuffers += count;
+            pooledBytes += (long)count << (i + minShift);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("direct", direct);
+        result.put("acquired", acquired.get());
+        result.put("allocated", allocated.get());
+        result.put("released", released.get());
+        result.put("pooled_buffers", pooledBuffers);
+        result.put("pooled_bytes", pooledBytes);
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.servlet.UnavailableException;
+
+import com.couchbase.capi.BatchBulkDocsBehavior;
+import com.couchbase.capi.CAPIBehavior;
+
+/**
+ * Group commit for _bulk_docs.
+ *
+ * Documents of concurrent _bulk_docs requests are collected and written
+ * together, then the per-document results are handed back to the request
+ * they came from.  With a {@link BatchBulkDocsBehavior} a whole batch is a
+ * single behavior call, otherwise there is one call per database in the batch.
+ */
+public class BulkDocsBatcher extends BatchingStage<List<Map<String, Object>>, List<Object>> {
+
+    protected CAPIBehavior capiBehavior;
+
+    /**
+     * @param capiBehavior the behavior the batches are written to
+     * @param maxBatchDocs flush once this many documents are waiting
+     * @param lingerMillis flush once the oldest request has waited this long
+     */
+    public BulkDocsBatcher(CAPIBehavior capiBehavior, int maxBatchDocs, long lingerMillis) {
+        super("capi-bulk-docs-batcher", maxBatchDocs, lingerMillis);
+        this.capiBehavior = capiBehavior;
+    }
+
+    @Override
+    protected int weigh(List<Map<String, Object>> docs) {
+        return docs == null ? 0 : docs.size();
+    }
+
+    @Override
+    protected void flush(List<Pending<List<Map<String, Object>>, List<Object>>> batch) {
+        Map<String, List<Pending<List<Map<String, Object>>, List<Object>>>> requestsByDatabase = new LinkedHashMap<>();
+        Map<String, List<Map<String, Object>>> docsByDatabase = new LinkedHashMap<>();
+        for (Pending<List<Map<String, Object>>, List<Object>> request : batch) {
+            requestsByDatabase.computeIfAbsent(request.database, database -> new ArrayList<>()).add(request);
+            List<Map<String, Object>> docs = docsByDatabase.computeIfAbsent(request.database, database -> new ArrayList<>());
+            if(request.payload != null) {
+                docs.addAll(request.payload);
+            }
+        }
+
+        if(capiBehavior instanceof BatchBulkDocsBehavior) {
+            Map<String, List<Object>> resultsByDatabase;
+            try {
+                resultsByDatabase = ((BatchBulkDocsBehavior)capiBehavior).bulkDocsBatch(docsByDatabase);
+            } catch (UnavailableException e) {
+                for (Pending<List<Map<String, Object>>, List<Object>> request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+                return;
+            }
+            for (Entry<String, List<Pending<List<Map<String, Object>>, List<Object>>>> entry : requestsByDatabase.entrySet()) {
+                List<Object> results = resultsByDatabase == null ? null : resultsByDatabase.get(entry.getKey());
+                distribute(entry.getValue(), results);
+            }
+        } else {
+            for (Entry<String, List<Pending<List<Map<String, Object>>, List<Object>>>> entry : requestsByDatabase.entrySet()) {
+                try {
+                    List<Object> results = capiBehavior.bulkDocs(entry.getKey(), docsByDatabase.get(entry.getKey()));
+                    distribute(entry.getValue(), results);
+                } catch (UnavailableException e) {
+                    for (Pending<List<Map<String, Object>>, List<Object>> request : entry.getValue()) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Split the results for a database back into the requests its documents came from.
+     * An empty result, as CouchDB gives for new_edits=false, is an empty result
+     * for every request.
+     */
+    private void distribute(List<Pending<List<Map<String, Object>>, List<Object>>> requests, List<Object> results) {
+        int expected = 0;
+        for (Pending<List<Map<String, Object>>, List<Object>> request : requests) {
+            expected += request.weight;
+        }
+        if(results != null && results.isEmpty()) {
+            for (Pending<List<Map<String, Object>>, List<Object>> request : requests) {
+                request.result.complete(new ArrayList<>());
+            }
+            return;
+        }
+        if(results != null && results.size() != expected) {
+            IllegalStateException e = new IllegalStateException("expected " + expected + " bulk docs results, got " + results.size());
+            for (Pending<List<Map<String, Object>>, List<Object>> request : requests) {
+                request.result.completeExceptionally(e);
+            }
+            return;
+        }
+
+        int offset = 0;
+        for (Pending<List<Map<String, Object>>, List<Object>> request : requests) {
+            if(results == null) {
+                request.result.complete(null);
+            } else {
+                request.result.complete(new ArrayList<>(results.subList(offset, offset + request.weight)));
+            }
+            offset += request.weight;
+        }
+    }
+}
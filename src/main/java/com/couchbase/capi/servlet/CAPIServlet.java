@@ -13,30 +13,48 @@
  */
 package com.couchbase.capi.servlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.couchbase.capi.AsyncCAPIBehavior;
 import com.couchbase.capi.CAPIBehavior;
+import com.couchbase.capi.RawBulkDocsBehavior;
+import com.couchbase.capi.RawDocument;
+import com.couchbase.capi.StreamingBulkDocsBehavior;
+import com.couchbase.capi.StreamingRevsDiffBehavior;
 
 /**
  * This servlet implements the Couch API (CAPI)
@@ -55,8 +73,386 @@ public class CAPIServlet extends HttpServlet {
 
     protected CAPIBehavior capiBehavior;
 
+    protected int bulkDocsChunkSize = 64;
+
+    protected int revsDiffChunkSize = 256;
+
+    protected long asyncTimeout = 120000;
+
+    protected BulkDocsBatcher bulkDocsBatcher;
+
+    protected RevsDiffCoalescer revsDiffCoalescer;
+
+    protected StripedExecutor stripedExecutor;
+
+    protected AdmissionController admissionController;
+
+    protected BufferPool bufferPool = new BufferPool();
+    protected int maxRequestBodySize = 64 * 1024 * 1024;
+
+    protected RevisionCache revisionCache;
+
+    protected VBucketUUIDTable vbucketUUIDTable;
+
+    protected CheckpointManager checkpointManager;
+
+    protected LocalDocumentStore localDocumentStore;
+
+    private final DatabaseExistsCache databaseExistsCache = new DatabaseExistsCache(1000, 0, 16384);
+
+    private static final int MAX_DECODED_NAMES = 16384;
+
+    private static final String ADMITTED_ATTRIBUTE = CAPIServlet.class.getName() + ".admitted";
+    private static final String REVS_DIFF_NOT_AN_OBJECT = "_revs_diff request body must be an object";
+    private final ConcurrentHashMap<String, String> decodedNames = new ConcurrentHashMap<>();
+
+    private final RawBulkDocsParser rawBulkDocsParser;
+
+    private final JsonResponses responses;
+
     public CAPIServlet(CAPIBehavior capiBehavior) {
         this.capiBehavior = capiBehavior;
+        this.rawBulkDocsParser = new RawBulkDocsParser(mapper.getJsonFactory());
+        this.responses = new JsonResponses(mapper.getJsonFactory());
+    }
+
+    public int getBulkDocsChunkSize() {
+        return bulkDocsChunkSize;
+    }
+
+    /**
+     * Set the maximum number of documents handed to a StreamingBulkDocsBehavior at once
+     *
+     * @param bulkDocsChunkSize
+     */
+    public void setBulkDocsChunkSize(int bulkDocsChunkSize) {
+        if(bulkDocsChunkSize < 1) {
+            throw new IllegalArgumentException("bulkDocsChunkSize must be positive");
+        }
+        this.bulkDocsChunkSize = bulkDocsChunkSize;
+    }
+
+    public int getRevsDiffChunkSize() {
+        return revsDiffChunkSize;
+    }
+
+    /**
+     * Set the maximum number of document ids handed to a StreamingRevsDiffBehavior at once
+     *
+     * @param revsDiffChunkSize
+     */
+    public void setRevsDiffChunkSize(int revsDiffChunkSize) {
+        if(revsDiffChunkSize < 1) {
+            throw new IllegalArgumentException("revsDiffChunkSize must be positive");
+        }
+        this.revsDiffChunkSize = revsDiffChunkSize;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * Set how long an AsyncCAPIBehavior request may take before it is answered with 503
+     *
+     * @param asyncTimeout timeout in milliseconds, 0 for no timeout
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    public BulkDocsBatcher getBulkDocsBatcher() {
+        return bulkDocsBatcher;
+    }
+
+    /**
+     * Route plain _bulk_docs requests through a group commit stage.  The
+     * previous batcher, if any, is closed.
+     *
+     * @param bulkDocsBatcher the batcher to use, or null to call the behavior directly
+     */
+    public void setBulkDocsBatcher(BulkDocsBatcher bulkDocsBatcher) {
+        BulkDocsBatcher previous = this.bulkDocsBatcher;
+        this.bulkDocsBatcher = bulkDocsBatcher;
+        if(previous != null && previous != bulkDocsBatcher) {
+            previous.close();
+        }
+    }
+
+    public RevsDiffCoalescer getRevsDiffCoalescer() {
+        return revsDiffCoalescer;
+    }
+
+    /**
+     * Look up the revisions of concurrent _revs_diff requests together.  The
+     * previous coalescer, if any, is closed.
+     *
+     * @param revsDiffCoalescer the coalescer to use, or null to call the behavior directly
+     */
+    public void setRevsDiffCoalescer(RevsDiffCoalescer revsDiffCoalescer) {
+        RevsDiffCoalescer previous = this.revsDiffCoalescer;
+        this.revsDiffCoalescer = revsDiffCoalescer;
+        if(previous != null && previous != revsDiffCoalescer) {
+            previous.close();
+        }
+    }
+
+    public StripedExecutor getStripedExecutor() {
+        return stripedExecutor;
+    }
+
+    /**
+     * Run the blocking behavior calls of _bulk_docs and _revs_diff on per-vbucket
+     * lanes.  The previous executor, if any, is shut down.
+     *
+     * @param stripedExecutor the executor to use, or null to call the behavior on the request thread
+     */
+    public void setStripedExecutor(StripedExecutor stripedExecutor) {
+        StripedExecutor previous = this.stripedExecutor;
+        this.stripedExecutor = stripedExecutor;
+        if(previous != null && previous != stripedExecutor) {
+            previous.close();
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool request bodies are read into
+     *
+     * @param bufferPool
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public int getMaxRequestBodySize() {
+        return maxRequestBodySize;
+    }
+
+    /**
+     * Set the largest request body read into a buffer, after decoding.  Larger
+     * bodies are answered with 413.  Streamed bodies are not buffered and not limited.
+     *
+     * @param maxRequestBodySize the limit in bytes
+     */
+    public void setMaxRequestBodySize(int maxRequestBodySize) {
+        if(maxRequestBodySize < 1) {
+            throw new IllegalArgumentException("maxRequestBodySize must be positive");
+        }
+        this.maxRequestBodySize = maxRequestBodySize;
+    }
+
+    public long getDatabaseExistsCacheTtl() {
+        return databaseExistsCache.getTtlMillis();
+    }
+
+    /**
+     * Set how long CAPIBehavior.databaseExists answers that a database exists are reused
+     *
+     * @param ttlMillis time to live in milliseconds, 0 to ask the behavior on every request
+     */
+    public void setDatabaseExistsCacheTtl(long ttlMillis) {
+        databaseExistsCache.setTtlMillis(ttlMillis);
+    }
+
+    public long getDatabaseExistsCacheNegativeTtl() {
+        return databaseExistsCache.getNegativeTtlMillis();
+    }
+
+    /**
+     * Set how long CAPIBehavior.databaseExists answers that a database is missing
+     * are reused.  Off by default, as a database created in the meantime would be
+     * reported missing until the answer expires or invalidateDatabaseExists is called.
+     *
+     * @param negativeTtlMillis time to live in milliseconds, 0 to not remember missing databases
+     */
+    public void setDatabaseExistsCacheNegativeTtl(long negativeTtlMillis) {
+        databaseExistsCache.setNegativeTtlMillis(negativeTtlMillis);
+    }
+
+    /**
+     * Forget the cached existence of a database, call this when it is created or deleted
+     *
+     * @param database the unescaped database name
+     */
+    public void invalidateDatabaseExists(String database) {
+        databaseExistsCache.invalidate(database);
+    }
+
+    /**
+     * Forget the cached existence of all databases
+     */
+    public void invalidateDatabaseExists() {
+        databaseExistsCache.invalidateAll();
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Limit the number of _bulk_docs and _revs_diff requests processed at once
+     *
+     * @param admissionController the controller to ask for permits, or null to admit everything
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public RevisionCache getRevisionCache() {
+        return revisionCache;
+    }
+
+    /**
+     * Remember the revisions of accepted documents and answer _revs_diff from
+     * them, only documents with unknown revisions are passed to the behavior
+     *
+     * @param revisionCache the cache to use, or null to always ask the behavior.
+     *  A Closeable cache is closed when the servlet is destroyed.
+     */
+    public void setRevisionCache(RevisionCache revisionCache) {
+        this.revisionCache = revisionCache;
+    }
+
+    public VBucketUUIDTable getVBucketUUIDTable() {
+        return vbucketUUIDTable;
+    }
+
+    /**
+     * Answer the checkpoint requests from a table of vbucket UUIDs instead of
+     * asking the behavior every time.  The table must be invalidated whenever
+     * a vbucket UUID changes.
+     *
+     * @param vbucketUUIDTable the table to use, or null to always ask the behavior
+     */
+    public void setVBucketUUIDTable(VBucketUUIDTable vbucketUUIDTable) {
+        this.vbucketUUIDTable = vbucketUUIDTable;
+    }
+
+    /**
+     * Forget the UUID of a vbucket of the default pool, call this when it changes
+     */
+    public void invalidateVBucketUUID(String bucket, int vbucket) {
+        VBucketUUIDTable table = vbucketUUIDTable;
+        if(table != null) {
+            table.invalidate("default", bucket, vbucket);
+        }
+    }
+
+    public CheckpointManager getCheckpointManager() {
+        return checkpointManager;
+    }
+
+    /**
+     * Take vbucket UUIDs from a checkpoint manager instead of the behavior,
+     * and record accepted checkpoints in it.  A VBucketUUIDTable, if set,
+     * still answers first; give it the manager as source.  The manager is
+     * closed when the servlet is destroyed.
+     *
+     * @param checkpointManager the manager to use, or null to leave checkpoints to the behavior
+     */
+    public void setCheckpointManager(CheckpointManager checkpointManager) {
+        this.checkpointManager = checkpointManager;
+    }
+
+    public LocalDocumentStore getLocalDocumentStore() {
+        return localDocumentStore;
+    }
+
+    /**
+     * Keep _local documents in a store of their own, or cache them in front of
+     * the behavior.  By default they go straight to the behavior, which owns
+     * them, see {@link LocalDocumentStore}.  The previous store, if any, is
+     * flushed and closed.
+     *
+     * @param localDocumentStore the store to use, or null to call the behavior directly
+     */
+    public void setLocalDocumentStore(LocalDocumentStore localDocumentStore) {
+        LocalDocumentStore previous = this.localDocumentStore;
+        this.localDocumentStore = localDocumentStore;
+        if(previous != null && previous != localDocumentStore) {
+            closeQuietly(previous, "local document store");
+        }
+    }
+
+    protected String getVBucketUUID(String bucket, int vbucket) throws IOException {
+        VBucketUUIDTable table = vbucketUUIDTable;
+        if(table != null) {
+            return table.get("default", bucket, vbucket);
+        }
+        CheckpointManager manager = checkpointManager;
+        if(manager != null) {
+            return manager.getVBucketUUID(bucket, vbucket);
+        }
+        return capiBehavior.getVBucketUUID("default", bucket, vbucket);
+    }
+
+    /**
+     * @return statistics about the request processing stages in use
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        if(stripedExecutor != null) {
+            result.put("striped_executor", stripedExecutor.getStats());
+        }
+        if(bulkDocsBatcher != null) {
+            result.put("bulk_docs_batcher", bulkDocsBatcher.getStats());
+        }
+        if(revsDiffCoalescer != null) {
+            result.put("revs_diff_coalescer", revsDiffCoalescer.getStats());
+        }
+        if(admissionController != null) {
+            result.put("admission", admissionController.getStats());
+        }
+        result.put("buffer_pool", bufferPool.getStats());
+        result.put("database_exists_cache_size", databaseExistsCache.size());
+        if(revisionCache != null) {
+            result.put("revision_cache", revisionCache.getStats());
+        }
+        if(vbucketUUIDTable != null) {
+            result.put("vbucket_uuid_table", vbucketUUIDTable.getStats());
+        }
+        if(checkpointManager != null) {
+            result.put("checkpoints", checkpointManager.getStats());
+        }
+        if(localDocumentStore != null) {
+            result.put("local_documents", localDocumentStore.getStats());
+        }
+        return result;
+    }
+
+    @Override
+    public void destroy() {
+        if(bulkDocsBatcher != null) {
+            bulkDocsBatcher.close();
+        }
+        if(revsDiffCoalescer != null) {
+            revsDiffCoalescer.close();
+        }
+        if(stripedExecutor != null) {
+            stripedExecutor.close();
+        }
+        if(checkpointManager != null) {
+            closeQuietly(checkpointManager, "checkpoint manager");
+        }
+        if(localDocumentStore != null) {
+            closeQuietly(localDocumentStore, "local document store");
+        }
+        if(revisionCache instanceof Closeable) {
+            closeQuietly((Closeable)revisionCache, "revision cache");
+        }
+        super.destroy();
+    }
+
+    private static void closeQuietly(Closeable closeable, String what) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.warn("unable to close " + what, e);
+        }
     }
 
     /**
@@ -66,73 +462,215 @@ public class CAPIServlet extends HttpServlet {
     protected void service(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
 
+        if(contentCoding(req) == null) {
+            JsonResponses.send(resp, HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    responses.errorBody(JsonResponses.UNSUPPORTED_MEDIA_TYPE, "unsupported Content-Encoding"));
+            return;
+        }
+
+        try {
+            dispatch(req, resp);
+        } catch (RequestBodyTooLargeException e) {
+            logger.debug("rejecting {}: {}", req.getRequestURI(), e.getMessage());
+            if(resp.isCommitted()) {
+                throw e;
+            }
+            resp.resetBuffer();
+            JsonResponses.send(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, JsonResponses.TOO_LARGE);
+        }
+    }
+
+    private void dispatch(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+
         String uri = req.getRequestURI();
-        String[] splitUri = getUriPieces(uri);
+        RequestPath path = new RequestPath(uri);
 
-        if((splitUri.length == 1) && splitUri[0].equals("")) {
+        if((path.size() == 1) && path.isEmpty(0)) {
             handleWelcome(req, resp);
         }
-        else if ((splitUri.length == 1 && splitUri[0].startsWith("_"))) {
-            handleRootSpecial(req, resp, splitUri[0]);
+        else if ((path.size() == 1 && path.isSpecial(0))) {
+            handleRootSpecial(req, resp, path.segment(0));
         }
-        else if (splitUri.length == 1) {
-            handleDatabase(req, resp, unescapeName(splitUri[0]));
-        } else if (splitUri.length == 2) {
+        else if (path.size() == 1) {
+            handleDatabase(req, resp, unescapeDatabaseName(path.segment(0)));
+        } else {
             // make sure database is valid
-            String doesNotExistReason = capiBehavior.databaseExists(unescapeName(splitUri[0]));
+            String database = unescapeDatabaseName(path.segment(0));
+            String doesNotExistReason = databaseExists(database);
             if(doesNotExistReason != null) {
                 sendNotFoundResponse(resp, doesNotExistReason);
                 return;
             }
 
-            if (splitUri[1].equals("_bulk_docs")) {
-                handleBulkDocs(req, resp, unescapeName(splitUri[0]));
-            } else if (splitUri[1].equals("_revs_diff")) {
-                handleRevsDiff(req, resp, unescapeName(splitUri[0]));
-            } else if (splitUri[1].equals("_ensure_full_commit")) {
-                handleEnsureFullCommit(req, resp,
-                        unescapeName(splitUri[0]));
-            } else if (splitUri[1].startsWith("_")) {
-                logger.debug("Unsupported special operation {}", splitUri[1]);
+            RequestPath.Special special = path.special(1);
+            if (path.size() == 2) {
+                switch (special) {
+                case BULK_DOCS:
+                case REVS_DIFF:
+                    handleAdmitted(req, resp, database, path.segment(1));
+                    break;
+                case ENSURE_FULL_COMMIT:
+                    handleEnsureFullCommit(req, resp, database);
+                    break;
+                case NONE:
+                    // this must be a document id
+                    handleDocument(req, resp, database, unescapeName(path.segment(1)));
+                    break;
+                default:
+                    logger.debug("Unsupported special operation {}", path.segment(1));
+                }
+            } else if (path.size() == 3) {
+                if (special == RequestPath.Special.LOCAL) {
+                    handleLocalDocument(req, resp, database,
+                            "_local/" + unescapeName(path.segment(2)));
+                } else {
+                    // attachment request
+                    handleAttachment(req, resp, database,
+                            path.segment(1), path.segment(2));
+                }
             } else {
-                // this must be a document id
-                handleDocument(req, resp, unescapeName(splitUri[0]),
-                        unescapeName(splitUri[1]));
+                if (special == RequestPath.Special.LOCAL) {
+                    handleLocalAttachment(req, resp, database,
+                            path.segment(2), path.segment(3));
+                } else {
+                    logger.debug("I don't know how to handle {}", uri);
+                }
             }
-        } else if (splitUri.length == 3) {
-            // make sure database is valid
-            String doesNotExistReason = capiBehavior.databaseExists(unescapeName(splitUri[0]));
-            if(doesNotExistReason != null) {
-                sendNotFoundResponse(resp, doesNotExistReason);
+        }
+
+    }
+
+    /**
+     * Check whether the database exists, using the cached answer if there is a recent one
+     *
+     * @return the reason the database does not exist, or null if it does
+     */
+    protected String databaseExists(String database) {
+        return databaseExistsCache.databaseExists(capiBehavior, database);
+    }
+
+    /**
+     * Dispatch _bulk_docs and _revs_diff once the admission controller lets
+     * the request in.  Rejected requests are answered before their body is read.
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @param operation
+     * @throws ServletException
+     * @throws IOException
+     */
+    protected void handleAdmitted(HttpServletRequest req,
+            HttpServletResponse resp, String database, String operation)
+            throws ServletException, IOException {
+
+        AdmissionController controller = admissionController;
+        AdmissionController.Permit permit = null;
+        if(controller != null) {
+            permit = controller.tryAcquire();
+            if(permit == null) {
+                logger.debug("rejecting {} for {}, concurrency limit reached", operation, database);
+                sendServiceUnavailableResponse(resp, "too many concurrent requests");
                 return;
             }
+        }
 
-            if (splitUri[1].equals("_local")) {
-                handleLocalDocument(req, resp,
-                        unescapeName(splitUri[0]), "_local/"
-                                + unescapeName(splitUri[2]));
+        AdmittedRequest admitted = null;
+        if(permit != null) {
+            admitted = new AdmittedRequest(permit);
+            req.setAttribute(ADMITTED_ATTRIBUTE, admitted);
+        }
+        try {
+            if (operation.equals("_bulk_docs")) {
+                handleBulkDocs(req, resp, database);
             } else {
-                // attachment request
-                handleAttachment(req, resp, unescapeName(splitUri[0]),
-                        splitUri[1], splitUri[2]);
+                handleRevsDiff(req, resp, database);
             }
-        } else {
-            // make sure database is valid
-            String doesNotExistReason = capiBehavior.databaseExists(unescapeName(splitUri[0]));
-            if(doesNotExistReason != null) {
-                sendNotFoundResponse(resp, doesNotExistReason);
-                return;
+        } finally {
+            // asynchronous requests release once the behavior has completed
+            if(admitted != null && !admitted.async) {
+                permit.release(resp.getStatus() == HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             }
+        }
+    }
 
-            if (splitUri[1].equals("_local")) {
-                handleLocalAttachment(req, resp,
-                        unescapeName(splitUri[0]), splitUri[2],
-                        splitUri[3]);
-            } else {
-                logger.debug("I don't know how to handle {}", uri);
+    /**
+     * The admission permit of a request and how far the request has got
+     */
+    private static class AdmittedRequest {
+
+        final AdmissionController.Permit permit;
+        volatile boolean async;
+        volatile boolean behaviorCalled;
+
+        AdmittedRequest(AdmissionController.Permit permit) {
+            this.permit = permit;
+        }
+
+        /**
+         * Release the permit of an asynchronous request once its behavior call has completed
+         */
+        void behaviorCompleted(Throwable failure) {
+            if(failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            permit.release(failure instanceof UnavailableException);
+        }
+    }
+
+    private static AdmittedRequest admitted(HttpServletRequest req) {
+        return (AdmittedRequest) req.getAttribute(ADMITTED_ATTRIBUTE);
+    }
+
+    /**
+     * Mark the request body as read and the behavior as about to be called,
+     * the admission controller measures latency from here
+     *
+     * @return the admission state of the request, or null if it was not admitted through a controller
+     */
+    private static AdmittedRequest behaviorStarted(AdmittedRequest admitted) {
+        if(admitted != null) {
+            admitted.behaviorCalled = true;
+            admitted.permit.started();
+        }
+        return admitted;
+    }
+
+    /**
+     * Releases the permit of an asynchronous request that completes without
+     * calling the behavior, e.g. on a malformed body or a fully cached _revs_diff.
+     * Once the behavior has been called the permit is released when it completes,
+     * which may be after the request timed out.
+     */
+    private static class PermitReleasingListener implements AsyncListener {
+
+        private final AdmittedRequest admitted;
+        private final HttpServletResponse resp;
+
+        PermitReleasingListener(AdmittedRequest admitted, HttpServletResponse resp) {
+            this.admitted = admitted;
+            this.resp = resp;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            if(!admitted.behaviorCalled) {
+                admitted.permit.release(resp.getStatus() == HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             }
         }
 
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
     }
 
     /**
@@ -159,13 +697,10 @@ public class CAPIServlet extends HttpServlet {
             logger.debug("got unknown special: {}", req.getRequestURI());
         }
 
-        InputStream is = req.getInputStream();
-        int requestLength = req.getContentLength();
-        byte[] buffer = new byte[requestLength];
-        IOUtils.readFully(is, buffer, 0, requestLength);
-
-        if (logger.isTraceEnabled()) {
-            logger.trace("root special request body was: '{}'", new String(buffer));
+        try (RequestBody body = readRequestBody(req)) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("root special request body was: '{}'", body);
+            }
         }
 
         sendNotFoundResponse(resp, "missing");
@@ -175,14 +710,7 @@ public class CAPIServlet extends HttpServlet {
             HttpServletResponse resp) throws ServletException, IOException {
 
         // read the request
-        InputStream is = req.getInputStream();
-        int requestLength = req.getContentLength();
-        byte[] buffer = new byte[requestLength];
-        IOUtils.readFully(is, buffer, 0, requestLength);
-
-        @SuppressWarnings("unchecked")
-        Map<String, Object> parsedValue = (Map<String, Object>) mapper
-                .readValue(buffer, Map.class);
+        Map<String, Object> parsedValue = readRequestMap(req);
         logger.trace("pre replicate parsed value is {}", parsedValue);
 
         int vbucket = (Integer)parsedValue.get("vb");
@@ -191,7 +719,7 @@ public class CAPIServlet extends HttpServlet {
         String vbopaque = (String)parsedValue.get("vbopaque");
         String commitopaque = (String)parsedValue.get("commitopaque");
 
-        String vbucketUUID = capiBehavior.getVBucketUUID("default", bucket, vbucket);
+        String vbucketUUID = getVBucketUUID(bucket, vbucket);
 
         if((vbopaque != null) && (!vbopaque.equals(vbucketUUID))) {
             logger.debug("returning 400");
@@ -202,25 +730,19 @@ public class CAPIServlet extends HttpServlet {
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         }
 
-        OutputStream os = resp.getOutputStream();
         resp.setContentType("application/json");
-        Map<String, Object> responseMap = new HashMap<>();
-        responseMap.put("vbopaque", vbucketUUID);
-        mapper.writeValue(os, responseMap);
+        JsonGenerator generator = responses.generator(resp.getOutputStream());
+        generator.writeStartObject();
+        generator.writeStringField("vbopaque", vbucketUUID);
+        generator.writeEndObject();
+        generator.close();
     }
 
     protected void handleCommitForCheckpoint(HttpServletRequest req,
             HttpServletResponse resp) throws ServletException, IOException {
 
         // read the request
-        InputStream is = req.getInputStream();
-        int requestLength = req.getContentLength();
-        byte[] buffer = new byte[requestLength];
-        IOUtils.readFully(is, buffer, 0, requestLength);
-
-        @SuppressWarnings("unchecked")
-        Map<String, Object> parsedValue = (Map<String, Object>) mapper
-                .readValue(buffer, Map.class);
+        Map<String, Object> parsedValue = readRequestMap(req);
         logger.trace("commit for checkpoint parsed value is {}", parsedValue);
 
         int vbucket = (Integer)parsedValue.get("vb");
@@ -228,21 +750,29 @@ public class CAPIServlet extends HttpServlet {
         String bucketUUID = (String)parsedValue.get("bucketUUID");
         String vbopaque = (String)parsedValue.get("vbopaque");
 
-        String vbucketUUID = capiBehavior.getVBucketUUID("default", bucket, vbucket);
-        Map<String, Object> responseMap = new HashMap<>();
-        responseMap.put("vbopaque", vbucketUUID);
+        String vbucketUUID = getVBucketUUID(bucket, vbucket);
 
-        if((vbopaque != null) && (!vbopaque.equals(vbucketUUID))) {
+        resp.setContentType("application/json");
+        boolean mismatch = (vbopaque != null) && (!vbopaque.equals(vbucketUUID));
+        if(mismatch) {
             logger.debug("returning 400");
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        } else {
-            // add the commit opaque
-            responseMap.put("commitopaque", vbucketUUID);
         }
 
-        OutputStream os = resp.getOutputStream();
-        resp.setContentType("application/json");
-        mapper.writeValue(os, responseMap);
+        CheckpointManager manager = checkpointManager;
+        if(!mismatch && manager != null) {
+            manager.commitCheckpoint(bucket, vbucket, vbucketUUID);
+        }
+
+        JsonGenerator generator = responses.generator(resp.getOutputStream());
+        generator.writeStartObject();
+        generator.writeStringField("vbopaque", vbucketUUID);
+        if(!mismatch) {
+            // add the commit opaque
+            generator.writeStringField("commitopaque", vbucketUUID);
+        }
+        generator.writeEndObject();
+        generator.close();
     }
 
     /**
@@ -260,97 +790,296 @@ public class CAPIServlet extends HttpServlet {
             throw new UnsupportedOperationException(
                     "Only GET operations on / are supported at this time");
         }
-
-        logger.trace("Got {} request for /", req.getMethod());
-        OutputStream os = resp.getOutputStream();
-        resp.setContentType("application/json");
-        Map<String, Object> responseMap = capiBehavior.welcome();
-        mapper.writeValue(os, responseMap);
+
+        logger.trace("Got {} request for /", req.getMethod());
+        OutputStream os = resp.getOutputStream();
+        resp.setContentType("application/json");
+        Map<String, Object> responseMap = capiBehavior.welcome();
+        responses.write(os, responseMap);
+    }
+
+    /**
+     * Handle GET/HEAD requests to the database URL
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @throws ServletException
+     * @throws IOException
+     */
+    protected void handleDatabase(HttpServletRequest req,
+            HttpServletResponse resp, String database) throws ServletException,
+            IOException {
+
+        if (!(req.getMethod().equals("GET") || req.getMethod().equals("HEAD"))) {
+            throw new UnsupportedOperationException(
+                    "Only GET/HEAD operations on database are supported at this time");
+        }
+
+        logger.trace("Got {} request for {}", req.getMethod(), database);
+
+        OutputStream os = resp.getOutputStream();
+
+        String doesNotExistReason = databaseExists(database);
+        if(doesNotExistReason == null) {
+            if (req.getMethod().equals("GET")) {
+                resp.setContentType("application/json");
+
+                Map<String, Object> responseMap = capiBehavior.getDatabaseDetails(database);
+                responses.write(os, responseMap);
+            }
+        } else {
+            sendNotFoundResponse(resp, doesNotExistReason);
+        }
+
+    }
+
+    /**
+     * Handle _revs_diff by claiming we don't have any of these revisions
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @throws ServletException
+     * @throws IOException
+     */
+    protected void handleRevsDiff(HttpServletRequest req,
+            HttpServletResponse resp, String database) throws ServletException,
+            IOException {
+
+        if (!req.getMethod().equals("POST")) {
+            throw new UnsupportedOperationException("_revs_diff must be POST");
+        }
+
+        logger.trace("Got revs diff request for {}", database);
+
+        if(capiBehavior instanceof AsyncCAPIBehavior) {
+            handleRevsDiffAsync(req, resp, database, ((AsyncCAPIBehavior)capiBehavior)::revsDiffAsync);
+            return;
+        }
+        if(capiBehavior instanceof StreamingRevsDiffBehavior) {
+            handleStreamingRevsDiff(req, resp, database, (StreamingRevsDiffBehavior)capiBehavior);
+            return;
+        }
+        if(revsDiffCoalescer != null) {
+            handleRevsDiffAsync(req, resp, database, revsDiffCoalescer::submit);
+            return;
+        }
+        if(stripedExecutor != null) {
+            handleRevsDiffAsync(req, resp, database, (db, revs) ->
+                    stripedExecutor.submit(db, () -> capiBehavior.revsDiff(db, revs)));
+            return;
+        }
+
+        OutputStream os = resp.getOutputStream();
+
+        Map<String, Object> parsedValue;
+        try (RequestBody body = readRequestBody(req)) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("revs diff request body was {}", body);
+            }
+            parsedValue = parseRevsDiff(body);
+        }
+
+        logger.trace("revs diff parsed value is {}", parsedValue);
+
+        if(parsedValue == null) {
+            sendBadRequestResponse(resp, REVS_DIFF_NOT_AN_OBJECT);
+            return;
+        }
+
+        Map<String, Object> uncached = uncachedRevs(database, parsedValue);
+        if(uncached.isEmpty() && !parsedValue.isEmpty()) {
+            responses.write(os, uncached);
+            return;
+        }
+
+        try {
+            behaviorStarted(admitted(req));
+            Map<String, Object> responseMap = capiBehavior.revsDiff(database, uncached);
+
+            if(responseMap != null) {
+                responses.write(os, responseMap);
+            } else {
+                sendNotFoundResponse(resp, "missing");
+            }
+        } catch (UnavailableException e) {
+                sendServiceUnavailableResponse(resp, "too many concurrent requests");
+        }
     }
 
     /**
-     * Handle GET/HEAD requests to the database URL
+     * Handle _revs_diff without holding on to the request thread
      *
      * @param req
      * @param resp
      * @param database
-     * @throws ServletException
+     * @param revsDiff the asynchronous operation computing the differences
      * @throws IOException
      */
-    protected void handleDatabase(HttpServletRequest req,
-            HttpServletResponse resp, String database) throws ServletException,
-            IOException {
-
-        if (!(req.getMethod().equals("GET") || req.getMethod().equals("HEAD"))) {
-            throw new UnsupportedOperationException(
-                    "Only GET/HEAD operations on database are supported at this time");
-        }
+    protected void handleRevsDiffAsync(HttpServletRequest req,
+            HttpServletResponse resp, String database,
+            BiFunction<String, Map<String, Object>, ? extends CompletionStage<Map<String, Object>>> revsDiff)
+            throws IOException {
 
-        logger.trace("Got {} request for {}", req.getMethod(), database);
+        final AsyncExchange exchange = startAsync(req, resp);
+        final AdmittedRequest admitted = admitted(req);
+        exchange.readBody(req, contentCoding(req), bufferPool, maxRequestBodySize, body -> {
+            Map<String, Object> parsedValue = parseRevsDiff(body);
 
-        OutputStream os = resp.getOutputStream();
+            logger.trace("revs diff parsed value is {}", parsedValue);
 
-        String doesNotExistReason = capiBehavior.databaseExists(database);
-        if(doesNotExistReason == null) {
-            if (req.getMethod().equals("GET")) {
-                resp.setContentType("application/json");
+            if(parsedValue == null) {
+                exchange.send(HttpServletResponse.SC_BAD_REQUEST,
+                        responses.errorBody(JsonResponses.BAD_REQUEST, REVS_DIFF_NOT_AN_OBJECT));
+                return;
+            }
 
-                Map<String, Object> responseMap = capiBehavior.getDatabaseDetails(database);
-                mapper.writeValue(os, responseMap);
+            Map<String, Object> uncached = uncachedRevs(database, parsedValue);
+            if(uncached.isEmpty() && !parsedValue.isEmpty()) {
+                completeAsync(exchange, HttpServletResponse.SC_OK, uncached, null);
+                return;
             }
-        } else {
-            sendNotFoundResponse(resp, doesNotExistReason);
-        }
 
+            callBehaviorAsync(admitted, () -> revsDiff.apply(database, uncached)).whenComplete(
+                    (responseMap, failure) -> completeAsync(exchange, HttpServletResponse.SC_OK, responseMap, failure));
+        });
     }
 
     /**
-     * Handle _revs_diff by claiming we don't have any of these revisions
+     * Walk the {id: [revs]} entries of a _revs_diff request with an incremental
+     * parser, asking the behavior about them in chunks and writing the missing
+     * revisions out as soon as each chunk is answered.
      *
      * @param req
      * @param resp
      * @param database
+     * @param behavior
      * @throws ServletException
      * @throws IOException
      */
-    protected void handleRevsDiff(HttpServletRequest req,
-            HttpServletResponse resp, String database) throws ServletException,
-            IOException {
-
-        if (!req.getMethod().equals("POST")) {
-            throw new UnsupportedOperationException("_revs_diff must be POST");
-        }
-
-        logger.trace("Got revs diff request for {}", database);
+    protected void handleStreamingRevsDiff(HttpServletRequest req,
+            HttpServletResponse resp, String database, StreamingRevsDiffBehavior behavior)
+            throws ServletException, IOException {
 
-        OutputStream os = resp.getOutputStream();
-        InputStream is = req.getInputStream();
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(
+                contentCoding(req).decode(req.getInputStream()));
+        JsonGenerator generator = null;
+        Map<String, List<String>> chunk = new LinkedHashMap<>();
+        RevisionCache cache = revisionCache;
 
-        int requestLength = req.getContentLength();
-        byte[] buffer = new byte[requestLength];
-        IOUtils.readFully(is, buffer, 0, requestLength);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                sendBadRequestResponse(resp, REVS_DIFF_NOT_AN_OBJECT);
+                return;
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String id = parser.getCurrentName();
+                List<String> revs = readRevs(parser);
+                if(cache != null && isCached(cache, database, id, revs)) {
+                    continue;
+                }
+                chunk.put(id, revs);
+                if(chunk.size() >= revsDiffChunkSize) {
+                    behaviorStarted(admitted(req));
+                    generator = flushRevsDiffChunk(resp, database, behavior, chunk, generator);
+                    if(generator == null) {
+                        return;
+                    }
+                    chunk.clear();
+                }
+            }
 
-        if (logger.isTraceEnabled()) {
-            logger.trace("revs diff request body was {}", new String(buffer));
+            if(!chunk.isEmpty()) {
+                behaviorStarted(admitted(req));
+                generator = flushRevsDiffChunk(resp, database, behavior, chunk, generator);
+                if(generator == null) {
+                    return;
+                }
+            }
+            if(generator == null) {
+                // nothing was missing, or everything was known from the revision cache
+                generator = startRevsDiffResponse(resp);
+            }
+            generator.writeEndObject();
+            generator.close();
+        } finally {
+            parser.close();
         }
+    }
 
-        @SuppressWarnings("unchecked")
-        Map<String, Object> parsedValue = (Map<String, Object>) mapper
-                .readValue(buffer, Map.class);
+    /**
+     * Read the revisions asked about for one id, a single revision or an array of them
+     */
+    private static List<String> readRevs(JsonParser parser) throws IOException, ServletException {
+        JsonToken token = parser.nextToken();
+        if(token == JsonToken.VALUE_STRING) {
+            return Collections.singletonList(parser.getText());
+        }
+        if(token != JsonToken.START_ARRAY) {
+            throw new ServletException("_revs_diff revisions must be a string or an array");
+        }
+        List<String> revs = new ArrayList<>(1);
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+            revs.add(parser.getText());
+        }
+        return revs;
+    }
 
-        logger.trace("revs diff parsed value is {}", parsedValue);
+    /**
+     * Ask the behavior about a chunk of ids and write out the missing revisions
+     *
+     * @return the generator to continue with, or null if an error response was sent instead
+     */
+    private JsonGenerator flushRevsDiffChunk(HttpServletResponse resp, String database,
+            StreamingRevsDiffBehavior behavior, Map<String, List<String>> chunk,
+            JsonGenerator generator) throws ServletException, IOException {
 
+        Map<String, List<String>> missing;
         try {
-            Map<String, Object> responseMap = capiBehavior.revsDiff(database, parsedValue);
+            missing = callBehavior(database, () -> behavior.revsDiffChunk(database, chunk));
+        } catch (UnavailableException e) {
+            if(generator != null) {
+                throw new ServletException("behavior became unavailable in the middle of _revs_diff", e);
+            }
+            sendServiceUnavailableResponse(resp, "too many concurrent requests");
+            return null;
+        }
 
-            if(responseMap != null) {
-                mapper.writeValue(os, responseMap);
-            } else {
-                sendNotFoundResponse(resp, "missing");
+        if(missing == null) {
+            if(generator != null) {
+                throw new ServletException("database disappeared in the middle of _revs_diff");
             }
-        } catch (UnavailableException e) {
-                sendServiceUnavailableResponse(resp, "too many concurrent requests");
+            sendNotFoundResponse(resp, "missing");
+            return null;
+        }
+
+        if(generator == null) {
+            generator = startRevsDiffResponse(resp);
+        }
+        for (Map.Entry<String, List<String>> entry : missing.entrySet()) {
+            List<String> revs = entry.getValue();
+            if(revs == null || revs.isEmpty()) {
+                continue;
+            }
+            generator.writeObjectFieldStart(entry.getKey());
+            generator.writeArrayFieldStart("missing");
+            for (String rev : revs) {
+                generator.writeString(rev);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
         }
+        generator.flush();
+        return generator;
+    }
+
+    private JsonGenerator startRevsDiffResponse(HttpServletResponse resp) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        JsonGenerator generator = responses.generator(resp.getOutputStream());
+        generator.writeStartObject();
+        return generator;
     }
 
     protected void handleEnsureFullCommit(HttpServletRequest req,
@@ -364,16 +1093,13 @@ public class CAPIServlet extends HttpServlet {
 
         logger.trace("Got ensure full commit request for {}", database);
 
-        resp.setStatus(HttpServletResponse.SC_CREATED);
-        resp.setContentType("application/json");
-
         if(capiBehavior.ensureFullCommit(database)) {
-
-            Map<String, Object> responseMap = new HashMap<>();
-            responseMap.put("ok", true);
-
-            OutputStream os = resp.getOutputStream();
-            mapper.writeValue(os, responseMap);
+            CheckpointManager manager = checkpointManager;
+            if(manager != null) {
+                // checkpoint records still being written must be durable as well
+                manager.sync();
+            }
+            JsonResponses.send(resp, HttpServletResponse.SC_CREATED, JsonResponses.OK);
         } else {
             sendNotFoundResponse(resp, "missing");
         }
@@ -423,7 +1149,9 @@ public class CAPIServlet extends HttpServlet {
 
             Map<String, Object> doc = null;
             if (documentType.equals("_local")) {
-                doc = capiBehavior.getLocalDocument(databaseName, documentId);
+                LocalDocumentStore store = localDocumentStore;
+                doc = store != null ? store.get(databaseName, documentId)
+                        : capiBehavior.getLocalDocument(databaseName, documentId);
             } else {
                 doc = capiBehavior.getDocument(databaseName, documentId);
             }
@@ -432,7 +1160,7 @@ public class CAPIServlet extends HttpServlet {
                 resp.setStatus(HttpServletResponse.SC_OK);
                 resp.setContentType("application/json");
                 OutputStream os = resp.getOutputStream();
-                mapper.writeValue(os, doc);
+                responses.write(os, doc);
             } else {
                 sendNotFoundResponse(resp, "missing");
                 return;
@@ -443,20 +1171,17 @@ public class CAPIServlet extends HttpServlet {
             String rev = null;
 
             //read the document
-            InputStream is = req.getInputStream();
-
-            int requestLength = req.getContentLength();
-            byte[] buffer = new byte[requestLength];
-            IOUtils.readFully(is, buffer, 0, requestLength);
-
-            @SuppressWarnings("unchecked")
-            Map<String, Object> parsedValue = (Map<String, Object>) mapper
-                    .readValue(buffer, Map.class);
+            Map<String, Object> parsedValue = readRequestMap(req);
 
-            if(documentType.equals("_local)")) {
-                rev = capiBehavior.storeLocalDocument(databaseName, documentId, parsedValue);
+            if(documentType.equals("_local")) {
+                LocalDocumentStore store = localDocumentStore;
+                rev = store != null ? store.put(databaseName, documentId, parsedValue)
+                        : capiBehavior.storeLocalDocument(databaseName, documentId, parsedValue);
             } else {
                 rev = capiBehavior.storeDocument(databaseName, documentId, parsedValue);
+                if(rev != null && revisionCache != null) {
+                    revisionCache.put(databaseName, documentId, rev);
+                }
             }
 
             if(rev == null) {
@@ -465,39 +1190,41 @@ public class CAPIServlet extends HttpServlet {
 
             resp.setStatus(HttpServletResponse.SC_CREATED);
             resp.setContentType("application/json");
-            OutputStream os = resp.getOutputStream();
-
-            Map<String, Object> responseMap = new HashMap<>();
-            responseMap.put("ok", true);
-            responseMap.put("id", documentId);
-            responseMap.put("rev", rev);
-            mapper.writeValue(os, responseMap);
+            JsonGenerator generator = responses.generator(resp.getOutputStream());
+            generator.writeStartObject();
+            generator.writeBooleanField("ok", true);
+            generator.writeStringField("id", documentId);
+            generator.writeStringField("rev", rev);
+            generator.writeEndObject();
+            generator.close();
         }
 
     }
 
     private void sendNotFoundResponse(HttpServletResponse resp, String doesNotExistReason)
-            throws IOException, JsonGenerationException, JsonMappingException {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-        resp.setContentType("application/json");
-        OutputStream os = resp.getOutputStream();
+            throws IOException {
+        JsonResponses.send(resp, HttpServletResponse.SC_NOT_FOUND,
+                responses.errorBody(JsonResponses.NOT_FOUND, doesNotExistReason));
+    }
 
-        Map<String, Object> responseMap = new HashMap<>();
-        responseMap.put("error", "not_found");
-        responseMap.put("reason", doesNotExistReason);
-        mapper.writeValue(os, responseMap);
+    private void sendBadRequestResponse(HttpServletResponse resp, String reason)
+            throws IOException {
+        JsonResponses.send(resp, HttpServletResponse.SC_BAD_REQUEST,
+                responses.errorBody(JsonResponses.BAD_REQUEST, reason));
     }
 
     private void sendServiceUnavailableResponse(HttpServletResponse resp, String reason)
-            throws IOException, JsonGenerationException, JsonMappingException {
-        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
-        resp.setContentType("application/json");
-        OutputStream os = resp.getOutputStream();
+            throws IOException {
+        setRetryAfter(resp);
+        JsonResponses.send(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                responses.errorBody(JsonResponses.SERVICE_UNAVAILABLE, reason));
+    }
 
-        Map<String, Object> responseMap = new HashMap<>();
-        responseMap.put("error", "service_unavailable");
-        responseMap.put("reason", reason);
-        mapper.writeValue(os, responseMap);
+    private void setRetryAfter(HttpServletResponse resp) {
+        AdmissionController controller = admissionController;
+        if(controller != null) {
+            resp.setIntHeader("Retry-After", controller.getRetryAfterSeconds());
+        }
     }
 
     protected void handleBulkDocs(HttpServletRequest req,
@@ -512,45 +1239,437 @@ public class CAPIServlet extends HttpServlet {
 
         logger.trace("Got bulk docs request for {}", database);
 
+        if(capiBehavior instanceof AsyncCAPIBehavior) {
+            handleBulkDocsAsync(req, resp, database, ((AsyncCAPIBehavior)capiBehavior)::bulkDocsAsync);
+            return;
+        }
+        if(capiBehavior instanceof RawBulkDocsBehavior) {
+            handleRawBulkDocs(req, resp, database, (RawBulkDocsBehavior)capiBehavior);
+            return;
+        }
+        if(capiBehavior instanceof StreamingBulkDocsBehavior) {
+            handleStreamingBulkDocs(req, resp, database, (StreamingBulkDocsBehavior)capiBehavior);
+            return;
+        }
+        if(bulkDocsBatcher != null) {
+            handleBulkDocsAsync(req, resp, database, bulkDocsBatcher::submit);
+            return;
+        }
+        if(stripedExecutor != null) {
+            handleBulkDocsAsync(req, resp, database, (db, docs) ->
+                    stripedExecutor.submit(db, () -> capiBehavior.bulkDocs(db, docs)));
+            return;
+        }
+
         resp.setStatus(HttpServletResponse.SC_CREATED);
         resp.setContentType("application/json");
 
         OutputStream os = resp.getOutputStream();
-        InputStream is = req.getInputStream();
-
-        int requestLength = req.getContentLength();
-        byte[] buffer = new byte[requestLength];
-        IOUtils.readFully(is, buffer, 0, requestLength);
 
-        @SuppressWarnings("unchecked")
-        Map<String, Object> parsedValue = (Map<String, Object>) mapper
-                .readValue(buffer, Map.class);
+        Map<String, Object> parsedValue = readRequestMap(req);
 
         logger.trace("parsed value is {}", parsedValue);
 
         try {
+            behaviorStarted(admitted(req));
             List<Object> responseList = capiBehavior.bulkDocs(database, (ArrayList<Map<String, Object>>) parsedValue.get("docs"));
             if(responseList == null) {
                 sendNotFoundResponse(resp, "missing");
                 return;
             }
-            mapper.writeValue(os, responseList);
+            cacheRevisions(database, responseList);
+            responses.write(os, responseList);
         } catch (UnavailableException e) {
             sendServiceUnavailableResponse(resp, "too many concurrent requests");
         }
     }
 
-    String[] getUriPieces(String uri) {
-        // remove initial /
-        if (uri.startsWith("/")) {
-            uri = uri.substring(1);
+    /**
+     * Handle _bulk_docs without holding on to the request thread
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @param bulkDocs the asynchronous operation storing the documents
+     * @throws IOException
+     */
+    protected void handleBulkDocsAsync(HttpServletRequest req,
+            HttpServletResponse resp, String database,
+            BiFunction<String, List<Map<String, Object>>, ? extends CompletionStage<List<Object>>> bulkDocs)
+            throws IOException {
+
+        final AsyncExchange exchange = startAsync(req, resp);
+        final AdmittedRequest admitted = admitted(req);
+        exchange.readBody(req, contentCoding(req), bufferPool, maxRequestBodySize, body -> {
+            Map<String, Object> parsedValue = parseMap(body);
+
+            logger.trace("parsed value is {}", parsedValue);
+
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> docs = (List<Map<String, Object>>) parsedValue.get("docs");
+            callBehaviorAsync(admitted, () -> bulkDocs.apply(database, docs)).whenComplete((responseList, failure) -> {
+                if(failure == null) {
+                    cacheRevisions(database, responseList);
+                }
+                completeAsync(exchange, HttpServletResponse.SC_CREATED, responseList, failure);
+            });
+        });
+    }
+
+    /**
+     * Start an asynchronous behavior call, releasing the admission permit of
+     * the request when it completes rather than when the response is sent
+     */
+    private <T> CompletionStage<T> callBehaviorAsync(AdmittedRequest admitted,
+            Supplier<? extends CompletionStage<T>> call) {
+        if(behaviorStarted(admitted) == null) {
+            return call.get();
+        }
+        CompletionStage<T> stage;
+        try {
+            stage = call.get();
+        } catch (RuntimeException e) {
+            admitted.behaviorCompleted(e);
+            throw e;
+        }
+        return stage.whenComplete((result, failure) -> admitted.behaviorCompleted(failure));
+    }
+
+    /**
+     * Run a blocking behavior call, on the lane of the database if a striped executor is in use
+     */
+    private <T> T callBehavior(String database, Callable<T> call) throws ServletException {
+        if(stripedExecutor == null) {
+            try {
+                return call.call();
+            } catch (ServletException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ServletException(e);
+            }
         }
-        String[] result = uri.split("/");
-        return result;
+
+        try {
+            return stripedExecutor.submit(database, call).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("interrupted waiting for behavior", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof ServletException) {
+                throw (ServletException)cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new ServletException(cause);
+        }
+    }
+
+    /**
+     * Leave out the documents whose requested revisions are all known from the
+     * revision cache, they are not missing and need no answer
+     *
+     * @return the part of the request the behavior still has to answer
+     */
+    private Map<String, Object> uncachedRevs(String database, Map<String, Object> revsMap) {
+        RevisionCache cache = revisionCache;
+        if(cache == null) {
+            return revsMap;
+        }
+        Map<String, Object> result = new HashMap<>();
+        for (Map.Entry<String, Object> entry : revsMap.entrySet()) {
+            if(!isCached(cache, database, entry.getKey(), entry.getValue())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result.size() == revsMap.size() ? revsMap : result;
+    }
+
+    private static boolean isCached(RevisionCache cache, String database, String id, Object revs) {
+        if(revs instanceof String) {
+            return cache.hasRevision(database, id, (String)revs);
+        }
+        if(revs instanceof List && !((List<?>)revs).isEmpty()) {
+            for (Object rev : (List<?>)revs) {
+                if(!(rev instanceof String) || !cache.hasRevision(database, id, (String)rev)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record the revisions of the documents a behavior accepted
+     *
+     * @param results the per document results of _bulk_docs, error results are skipped
+     */
+    private void cacheRevisions(String database, List<Object> results) {
+        RevisionCache cache = revisionCache;
+        if(cache == null || results == null) {
+            return;
+        }
+        for (Object result : results) {
+            if(!(result instanceof Map)) {
+                continue;
+            }
+            Map<?, ?> resultMap = (Map<?, ?>)result;
+            Object id = resultMap.get("id");
+            Object rev = resultMap.get("rev");
+            if(id instanceof String && rev instanceof String && !resultMap.containsKey("error")) {
+                cache.put(database, (String)id, (String)rev);
+            }
+        }
+    }
+
+    /**
+     * Read the whole request body into a pooled buffer, with or without Content-Length
+     */
+    private RequestBody readRequestBody(HttpServletRequest req) throws IOException {
+        ContentCoding coding = contentCoding(req);
+        if(coding == ContentCoding.IDENTITY) {
+            return RequestBody.read(req.getInputStream(), req.getContentLength(), -1,
+                    bufferPool, maxRequestBodySize);
+        }
+        // the Content-Length is that of the compressed body, so it is only a lower bound
+        try (InputStream decoded = coding.decode(req.getInputStream())) {
+            return RequestBody.read(decoded, -1, req.getContentLength(), bufferPool, maxRequestBodySize);
+        }
+    }
+
+    /**
+     * @return the coding of the request body, or null if it is not supported
+     */
+    private static ContentCoding contentCoding(HttpServletRequest req) {
+        return ContentCoding.of(req.getHeader("Content-Encoding"));
+    }
+
+    /**
+     * Read and parse a JSON object request body, the buffer is released right away
+     */
+    private Map<String, Object> readRequestMap(HttpServletRequest req) throws IOException {
+        try (RequestBody body = readRequestBody(req)) {
+            return parseMap(body);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parseMap(RequestBody body) throws IOException {
+        return body.parse(mapper, Map.class);
+    }
+
+    /**
+     * @return the {id: revs} map of a _revs_diff request, or null if the body is not an object
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parseRevsDiff(RequestBody body) throws IOException {
+        Object parsed = body.parse(mapper, Object.class);
+        return parsed instanceof Map ? (Map<String, Object>)parsed : null;
+    }
+
+    private AsyncExchange startAsync(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        AsyncExchange exchange = AsyncExchange.start(req, resp, asyncTimeout,
+                responses.errorBody(JsonResponses.SERVICE_UNAVAILABLE, "request timed out"));
+        AdmittedRequest admitted = admitted(req);
+        if(admitted != null) {
+            admitted.async = true;
+            req.getAsyncContext().addListener(new PermitReleasingListener(admitted, resp));
+        }
+        return exchange;
+    }
+
+    /**
+     * Turn the outcome of an asynchronous behavior call into the response
+     */
+    private void completeAsync(AsyncExchange exchange, int status, Object result, Throwable failure) {
+        try {
+            if(failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if(failure instanceof UnavailableException) {
+                setRetryAfter(exchange.getResponse());
+                exchange.send(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        responses.errorBody(JsonResponses.SERVICE_UNAVAILABLE, "too many concurrent requests"));
+            } else if(failure != null) {
+                exchange.fail(failure);
+            } else if(result == null) {
+                exchange.send(HttpServletResponse.SC_NOT_FOUND,
+                        responses.errorBody(JsonResponses.NOT_FOUND, "missing"));
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                responses.write(bytes, result);
+                exchange.send(status, bytes.toByteArray());
+            }
+        } catch (IOException | RuntimeException e) {
+            exchange.fail(e);
+        }
+    }
+
+    /**
+     * Hand the documents to the behavior with their bodies left as slices of
+     * the request buffer, only the meta of each document is parsed.
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @param behavior
+     * @throws ServletException
+     * @throws IOException
+     */
+    protected void handleRawBulkDocs(HttpServletRequest req,
+            HttpServletResponse resp, String database, RawBulkDocsBehavior behavior)
+            throws ServletException, IOException {
+
+        // the documents are slices of the body, so it is only released once the response is written
+        try (RequestBody body = readRequestBody(req)) {
+            List<RawDocument> docs = rawBulkDocsParser.parse(body);
+            logger.trace("raw bulk docs are {}", docs);
+
+            behaviorStarted(admitted(req));
+            List<Object> responseList = callBehavior(database, () -> behavior.bulkDocsRaw(database, docs));
+            if(responseList == null) {
+                sendNotFoundResponse(resp, "missing");
+                return;
+            }
+            cacheRevisions(database, responseList);
+            resp.setStatus(HttpServletResponse.SC_CREATED);
+            resp.setContentType("application/json");
+            responses.write(resp.getOutputStream(), responseList);
+        } catch (UnavailableException e) {
+            sendServiceUnavailableResponse(resp, "too many concurrent requests");
+        }
+    }
+
+    /**
+     * Walk the docs array of a _bulk_docs request with an incremental parser,
+     * handing the documents to the behavior in chunks and writing the results
+     * out as soon as each chunk is done.
+     *
+     * @param req
+     * @param resp
+     * @param database
+     * @param behavior
+     * @throws ServletException
+     * @throws IOException
+     */
+    protected void handleStreamingBulkDocs(HttpServletRequest req,
+            HttpServletResponse resp, String database, StreamingBulkDocsBehavior behavior)
+            throws ServletException, IOException {
+
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(
+                contentCoding(req).decode(req.getInputStream()));
+        JsonGenerator generator = null;
+        List<Map<String, Object>> chunk = new ArrayList<>(bulkDocsChunkSize);
+
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ServletException("_bulk_docs request body must be an object");
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(!"docs".equals(fieldName) || token != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while(parser.nextToken() != JsonToken.END_ARRAY) {
+                    if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                        throw new ServletException("_bulk_docs docs must be objects");
+                    }
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> doc = parser.readValueAs(Map.class);
+                    chunk.add(doc);
+                    if(chunk.size() >= bulkDocsChunkSize) {
+                        behaviorStarted(admitted(req));
+                        generator = flushBulkDocsChunk(resp, database, behavior, chunk, generator);
+                        if(generator == null) {
+                            return;
+                        }
+                        chunk.clear();
+                    }
+                }
+            }
+
+            if(!chunk.isEmpty() || generator == null) {
+                behaviorStarted(admitted(req));
+                generator = flushBulkDocsChunk(resp, database, behavior, chunk, generator);
+                if(generator == null) {
+                    return;
+                }
+            }
+            generator.writeEndArray();
+            generator.close();
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Hand one chunk to the behavior and write its results.  The response is
+     * only started once the first chunk has been accepted, so a missing
+     * database or an unavailable behavior can still be reported properly.
+     *
+     * @return the generator to continue writing with, or null if an error response was sent
+     */
+    private JsonGenerator flushBulkDocsChunk(HttpServletResponse resp, String database,
+            StreamingBulkDocsBehavior behavior, List<Map<String, Object>> chunk,
+            JsonGenerator generator) throws ServletException, IOException {
+
+        List<Object> results;
+        try {
+            results = callBehavior(database, () -> behavior.bulkDocsChunk(database, chunk));
+        } catch (UnavailableException e) {
+            if(generator != null) {
+                throw new ServletException("behavior became unavailable in the middle of _bulk_docs", e);
+            }
+            sendServiceUnavailableResponse(resp, "too many concurrent requests");
+            return null;
+        }
+
+        if(results == null) {
+            if(generator != null) {
+                throw new ServletException("database disappeared in the middle of _bulk_docs");
+            }
+            sendNotFoundResponse(resp, "missing");
+            return null;
+        }
+        cacheRevisions(database, results);
+
+        if(generator == null) {
+            resp.setStatus(HttpServletResponse.SC_CREATED);
+            resp.setContentType("application/json");
+            generator = responses.generator(resp.getOutputStream());
+            generator.writeStartArray();
+        }
+        for (Object result : results) {
+            responses.writeValue(generator, result);
+        }
+        generator.flush();
+        return generator;
     }
 
     String unescapeName(String name) throws UnsupportedEncodingException {
+        if(name.indexOf('%') < 0 && name.indexOf('+') < 0) {
+            return name;
+        }
         return URLDecoder.decode(name, "UTF-8");
     }
 
+    /**
+     * Database names repeat on every request for a vbucket, so their decoded form is kept
+     */
+    String unescapeDatabaseName(String name) throws UnsupportedEncodingException {
+        String decoded = decodedNames.get(name);
+        if(decoded == null) {
+            decoded = unescapeName(name);
+            if(decodedNames.size() >= MAX_DECODED_NAMES) {
+                decodedNames.clear();
+            }
+            decodedNames.put(name, decoded);
+        }
+        return decoded;
+    }
+
 }
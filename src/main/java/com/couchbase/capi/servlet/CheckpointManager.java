@@ -0,0 +1,552 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable vbucket UUIDs and checkpoint commits.
+ *
+ * Every vbucket gets a random UUID the first time it is asked for, and
+ * keeps it across restarts, so XDCR can resume from its last checkpoint
+ * instead of rolling the vbucket back.  Accepted checkpoint commits are
+ * recorded as well.
+ *
+ * State is kept in memory and every change is appended to a log file, one
+ * line per record.  Appends of concurrent callers are written and fsynced
+ * together by a single thread, and a caller only returns once its record is
+ * on disk.  Bucket names are escaped, so they cannot break the tab separated
+ * records.  On open the log is replayed and a torn last record is cut off.
+ * Whenever the log is mostly superseded records, on open or while running,
+ * it is rewritten compactly.
+ *
+ * A VBucketUUIDTable using the manager as its source is told when
+ * {@link #resetVBucket(String, int)} changes a UUID.
+ */
+public class CheckpointManager implements VBucketUUIDTable.Source, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointManager.class);
+
+    private static final char UUID_RECORD = 'U';
+    private static final char COMMIT_RECORD = 'C';
+
+    // superseded records tolerated before the log is compacted
+    private static final int COMPACTION_SLACK = 1024;
+
+    private static final class VBucketState {
+        final String uuid;
+        final long lastCommitMillis;
+        final CompletableFuture<Void> durable;
+
+        VBucketState(String uuid, long lastCommitMillis, CompletableFuture<Void> durable) {
+            this.uuid = uuid;
+            this.lastCommitMillis = lastCommitMillis;
+            this.durable = durable;
+        }
+    }
+
+    /**
+     * Group commit of log records
+     */
+    private final class LogWriter extends BatchingStage<byte[], Void> {
+
+        LogWriter(long lingerMillis) {
+            super("capi-checkpoint-log", 1024, lingerMillis);
+        }
+
+        @Override
+        protected int weigh(byte[] record) {
+            return 1;
+        }
+
+        @Override
+        protected void flush(List<Pending<byte[], Void>> batch) {
+            try {
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (Pending<byte[], Void> request : batch) {
+                    records.write(request.payload);
+                    if(request.payload.length > 0) {
+                        logRecords++;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                syncs.incrementAndGet();
+                for (Pending<byte[], Void> request : batch) {
+                    request.result.complete(null);
+                }
+            } catch (IOException e) {
+                logger.error("unable to write checkpoint log", e);
+                for (Pending<byte[], Void> request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+                return;
+            }
+            if(needsCompaction()) {
+                compactWhileRunning();
+            }
+        }
+    }
+
+    private final Path file;
+    private final ConcurrentHashMap<String, VBucketState> vbuckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final CopyOnWriteArrayList<VBucketUUIDTable.ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    // held shared while a change is applied in memory and its record submitted,
+    // exclusively while compacting, so a compaction sees every submitted change
+    private final ReadWriteLock changeLock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private LogWriter writer;
+    // records in the log, only touched by recovery and then by the log writer thread
+    private long logRecords;
+
+    private CheckpointManager(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the log, creating it if needed, with appends written as soon as
+     * the previous fsync is done
+     */
+    public static CheckpointManager open(Path file) throws IOException {
+        return open(file, 0);
+    }
+
+    /**
+     * @param file the log file
+     * @param lingerMillis how long appends may wait for others to share their fsync
+     */
+    public static CheckpointManager open(Path file, long lingerMillis) throws IOException {
+        CheckpointManager manager = new CheckpointManager(file);
+        manager.recover();
+        manager.writer = manager.new LogWriter(lingerMillis);
+        return manager;
+    }
+
+    private static String key(String bucket, int vbucket) {
+        return bucket + '/' + vbucket;
+    }
+
+    private static void checkVBucket(String bucket, int vbucket) {
+        if(bucket == null) {
+            throw new IllegalArgumentException("bucket must not be null");
+        }
+        if(vbucket < 0) {
+            throw new IllegalArgumentException("vbucket must not be negative: " + vbucket);
+        }
+    }
+
+    private void recover() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        byte[] log = Files.readAllBytes(file);
+        long records = 0;
+        int valid = 0;
+        int start = 0;
+        for (int end = 0; end < log.length; end++) {
+            if(log[end] != '\n') {
+                continue;
+            }
+            if(!replay(new String(log, start, end - start, StandardCharsets.UTF_8))) {
+                break;
+            }
+            records++;
+            start = end + 1;
+            valid = start;
+        }
+        if(valid < log.length) {
+            logger.warn("cutting off {} bytes of incomplete records at the end of checkpoint log {}",
+                    log.length - valid, file);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        logRecords = records;
+
+        if(needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return true if superseded records outnumber the live ones, a UUID and a
+     *  commit per vbucket, by more than COMPACTION_SLACK
+     */
+    private boolean needsCompaction() {
+        return logRecords > 2L * vbuckets.size() + COMPACTION_SLACK;
+    }
+
+    /**
+     * Compact from the log writer thread, so no append is written meanwhile.
+     * A failed compaction leaves the log as it was.
+     */
+    private void compactWhileRunning() {
+        changeLock.writeLock().lock();
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.warn("unable to compact checkpoint log " + file, e);
+        } finally {
+            changeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply one record of the log
+     *
+     * @return false if the record is damaged
+     */
+    private boolean replay(String record) {
+        String[] fields = record.split("\t", -1);
+        try {
+            if(fields.length == 4 && fields[0].charAt(0) == UUID_RECORD) {
+                vbuckets.put(key(unescape(fields[1]), Integer.parseInt(fields[2])),
+                        new VBucketState(fields[3], -1, CompletableFuture.completedFuture(null)));
+                return true;
+            }
+            if(fields.length == 5 && fields[0].charAt(0) == COMMIT_RECORD) {
+                String key = key(unescape(fields[1]), Integer.parseInt(fields[2]));
+                VBucketState state = vbuckets.get(key);
+                // commits made under an older UUID no longer count
+                if(state != null && state.uuid.equals(fields[3])) {
+                    vbuckets.put(key, new VBucketState(state.uuid, Long.parseLong(fields[4]), state.durable));
+                }
+                return true;
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Escape the separators of a record field, and the escape character itself
+     */
+    private static String escape(String field) {
+        if(field.indexOf('\\') < 0 && field.indexOf('\t') < 0 && field.indexOf('\n') < 0) {
+            return field;
+        }
+        StringBuilder escaped = new StringBuilder(field.length() + 8);
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+            case '\\':
+                escaped.append("\\\\");
+                break;
+            case '\t':
+                escaped.append("\\t");
+                break;
+            case '\n':
+                escaped.append("\\n");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @throws StringIndexOutOfBoundsException if the field ends in the middle of an escape
+     */
+    private static String unescape(String field) {
+        if(field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if(c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            char escaped = field.charAt(++i);
+            unescaped.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped);
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Rewrite the log with only the current state of every vbucket.  Must not
+     * run while records are written or changes are applied.
+     */
+    private void compact() throws IOException {
+        long count = 0;
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Map.Entry<String, VBucketState> entry : vbuckets.entrySet()) {
+                int slash = entry.getKey().lastIndexOf('/');
+                String bucket = entry.getKey().substring(0, slash);
+                int vbucket = Integer.parseInt(entry.getKey().substring(slash + 1));
+                VBucketState state = entry.getValue();
+                records.write(uuidRecord(bucket, vbucket, state.uuid));
+                count++;
+                if(state.lastCommitMillis >= 0) {
+                    records.write(commitRecord(bucket, vbucket, state.uuid, state.lastCommitMillis));
+                    count++;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while(buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        // the old log stays usable until the compacted one has taken its place
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        logRecords = count;
+        compactions.incrementAndGet();
+        logger.info("compacted checkpoint log {} to {} vbuckets", file, vbuckets.size());
+    }
+
+    private static byte[] uuidRecord(String bucket, int vbucket, String uuid) {
+        return (UUID_RECORD + "\t" + escape(bucket) + '\t' + vbucket + '\t' + uuid + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] commitRecord(String bucket, int vbucket, String uuid, long millis) {
+        return (COMMIT_RECORD + "\t" + escape(bucket) + '\t' + vbucket + '\t' + uuid + '\t' + millis + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String newUUID() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Append a record, the future completes once it is on disk
+     */
+    private CompletableFuture<Void> append(byte[] record) {
+        inFlight.incrementAndGet();
+        CompletableFuture<Void> durable = writer.submit(null, record);
+        durable.whenComplete((result, failure) -> inFlight.decrementAndGet());
+        return durable;
+    }
+
+    private static void await(CompletableFuture<Void> durable) throws IOException {
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for the checkpoint log", e);
+        } catch (ExecutionException e) {
+            throw new IOException("unable to write the checkpoint log", e.getCause());
+        }
+    }
+
+    /**
+     * @return the durable UUID of the vbucket, created on first use
+     * @throws IOException if a new UUID could not be written
+     * @throws IllegalArgumentException if the bucket is null or the vbucket negative
+     */
+    public String getVBucketUUID(String bucket, int vbucket) throws IOException {
+        checkVBucket(bucket, vbucket);
+        String key = key(bucket, vbucket);
+        VBucketState state = vbuckets.get(key);
+        if(state == null) {
+            changeLock.readLock().lock();
+            try {
+                state = vbuckets.computeIfAbsent(key, k -> {
+                    String uuid = newUUID();
+                    return new VBucketState(uuid, -1, append(uuidRecord(bucket, vbucket, uuid)));
+                });
+            } finally {
+                changeLock.readLock().unlock();
+            }
+        }
+        // nobody may hand out a UUID before it is durable
+        try {
+            await(state.durable);
+        } catch (IOException e) {
+            // let the next call try again with a new UUID
+            vbuckets.remove(key, state);
+            throw e;
+        }
+        return state.uuid;
+    }
+
+    /**
+     * VBucketUUIDTable.Source view, the pool is ignored
+     *
+     * @throws IllegalStateException if a new UUID could not be written
+     */
+    @Override
+    public String getVBucketUUID(String pool, String bucket, int vbucket) {
+        try {
+            return getVBucketUUID(bucket, vbucket);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Called by a VBucketUUIDTable using the manager as its source
+     */
+    @Override
+    public void addChangeListener(VBucketUUIDTable.ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Give a vbucket a new UUID, for example after its data was rolled back,
+     * so replications of it start over
+     *
+     * @return the new UUID
+     * @throws IllegalArgumentException if the bucket is null or the vbucket negative
+     */
+    public String resetVBucket(String bucket, int vbucket) throws IOException {
+        checkVBucket(bucket, vbucket);
+        String key = key(bucket, vbucket);
+        String uuid = newUUID();
+        VBucketState state;
+        changeLock.readLock().lock();
+        try {
+            state = new VBucketState(uuid, -1, append(uuidRecord(bucket, vbucket, uuid)));
+            vbuckets.put(key, state);
+        } finally {
+            changeLock.readLock().unlock();
+        }
+        // tables asking again wait for the new UUID to be durable
+        for (VBucketUUIDTable.ChangeListener listener : changeListeners) {
+            listener.vbucketUUIDChanged(bucket, vbucket);
+        }
+        try {
+            await(state.durable);
+        } catch (IOException e) {
+            vbuckets.remove(key, state);
+            throw e;
+        }
+        return uuid;
+    }
+
+    /**
+     * Durably record that a checkpoint was committed against a vbucket UUID.
+     * Nothing is recorded for a vbucket the manager has not handed a UUID
+     * out for, or whose UUID has changed since, as such a commit would not
+     * count on replay.
+     *
+     * @return true if the commit was recorded
+     * @throws IllegalArgumentException if an argument is null or the vbucket negative
+     */
+    public boolean commitCheckpoint(String bucket, int vbucket, String uuid) throws IOException {
+        checkVBucket(bucket, vbucket);
+        if(uuid == null) {
+            throw new IllegalArgumentException("uuid must not be null");
+        }
+        long now = System.currentTimeMillis();
+        AtomicReference<CompletableFuture<Void>> durable = new AtomicReference<>();
+        changeLock.readLock().lock();
+        try {
+            vbuckets.computeIfPresent(key(bucket, vbucket), (key, state) -> {
+                if(!state.uuid.equals(uuid)) {
+                    return state;
+                }
+                durable.set(append(commitRecord(bucket, vbucket, uuid, now)));
+                return new VBucketState(uuid, now, state.durable);
+            });
+        } finally {
+            changeLock.readLock().unlock();
+        }
+        if(durable.get() == null) {
+            logger.debug("not recording a commit of {}/{} for unknown UUID {}", bucket, vbucket, uuid);
+            return false;
+        }
+        commits.incrementAndGet();
+        await(durable.get());
+        return true;
+    }
+
+    /**
+     * @return when the last checkpoint of the vbucket was committed, or -1 if never under its current UUID
+     */
+    public long getLastCommitMillis(String bucket, int vbucket) {
+        checkVBucket(bucket, vbucket);
+        VBucketState state = vbuckets.get(key(bucket, vbucket));
+        return state == null ? -1 : state.lastCommitMillis;
+    }
+
+    /**
+     * Wait until every record appended so far is on disk.  Returns at once
+     * when nothing is being written.
+     */
+    public void sync() throws IOException {
+        if(inFlight.get() > 0) {
+            await(writer.submit(null, new byte[0]));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("file", file.toString());
+        result.put("vbuckets", vbuckets.size());
+        result.put("commits", commits.get());
+        result.put("syncs", syncs.get());
+        result.put("compactions", compactions.get());
+        try {
+            result.put("log_bytes", channel.size());
+        } catch (IOException e) {
+            logger.debug("unable to get the checkpoint log size", e);
+        }
+        return result;
+    }
+
+    /**
+     * Write out pending records and close the log
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The Content-Encoding of a request body.
+ *
+ * Compressed bodies are decoded as they are read, so a body is never held
+ * in memory in both its compressed and decompressed form by the blocking
+ * request paths.
+ */
+enum ContentCoding {
+
+    IDENTITY {
+        @Override
+        InputStream decode(InputStream in) {
+            return in;
+        }
+    },
+
+    GZIP {
+        @Override
+        InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+
+    DEFLATE {
+        /**
+         * "deflate" is meant to be zlib wrapped, but some clients send a raw
+         * deflate stream, so the zlib header is checked for before inflating.
+         */
+        @Override
+        InputStream decode(InputStream in) throws IOException {
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int first = pushback.read();
+            int second = first < 0 ? -1 : pushback.read();
+            if(second >= 0) {
+                pushback.unread(second);
+            }
+            if(first >= 0) {
+                pushback.unread(first);
+            }
+            boolean zlib = first >= 0 && second >= 0 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+            return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Wrap a stream of encoded bytes in a stream of decoded bytes
+     */
+    abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * @param contentEncoding the Content-Encoding header, possibly null
+     * @return the coding, or null if it is not supported
+     */
+    static ContentCoding of(String contentEncoding) {
+        if(contentEncoding == null) {
+            return IDENTITY;
+        }
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+        case "":
+        case "identity":
+            return IDENTITY;
+        case "gzip":
+        case "x-gzip":
+            return GZIP;
+        case "deflate":
+            return DEFLATE;
+        default:
+            return null;
+        }
+    }
+}
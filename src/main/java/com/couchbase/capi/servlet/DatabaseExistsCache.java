@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.capi.CAPIBehavior;
+
+/**
+ * Remembers the answers of CAPIBehavior.databaseExists for a short time.
+ *
+ * Existing databases are remembered for at most ttlMillis or until
+ * invalidated.  Missing databases are only remembered if negativeTtlMillis is
+ * set, so by default a database is found as soon as it has been created.  The
+ * cache is emptied whenever it grows past maxEntries, which keeps it small
+ * without tracking usage.
+ */
+class DatabaseExistsCache {
+
+    private static final class Entry {
+        final String doesNotExistReason;
+        final long expiresNanos;
+
+        Entry(String doesNotExistReason, long expiresNanos) {
+            this.doesNotExistReason = doesNotExistReason;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private volatile long ttlNanos;
+    private volatile long negativeTtlNanos;
+
+    DatabaseExistsCache(long ttlMillis, long negativeTtlMillis, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.maxEntries = maxEntries;
+    }
+
+    long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    void setTtlMillis(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        entries.clear();
+    }
+
+    long getNegativeTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(negativeTtlNanos);
+    }
+
+    void setNegativeTtlMillis(long negativeTtlMillis) {
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        entries.clear();
+    }
+
+    /**
+     * @return the behavior's reason for the database not existing, or null if it exists
+     */
+    String databaseExists(CAPIBehavior capiBehavior, String database) {
+        long ttl = ttlNanos;
+        long negativeTtl = negativeTtlNanos;
+        if(ttl <= 0 && negativeTtl <= 0) {
+            return capiBehavior.databaseExists(database);
+        }
+
+        long now = System.nanoTime();
+        Entry entry = entries.get(database);
+        if(entry != null && now - entry.expiresNanos < 0) {
+            return entry.doesNotExistReason;
+        }
+
+        String doesNotExistReason = capiBehavior.databaseExists(database);
+        long entryTtl = doesNotExistReason == null ? ttl : negativeTtl;
+        if(entryTtl <= 0) {
+            if(entry != null) {
+                entries.remove(database, entry);
+            }
+            return doesNotExistReason;
+        }
+        if(entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(database, new Entry(doesNotExistReason, now + entryTtl));
+        return doesNotExistReason;
+    }
+
+    void invalidate(String database) {
+        entries.remove(database);
+    }
+
+    void invalidateAll() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+/**
+ * Helpers for the (unescaped) database names XDCR uses, bucket/vbucket;uuid
+ */
+final class DatabaseNames {
+
+    private DatabaseNames() {
+    }
+
+    /**
+     * @return the vbucket number in the database name, or -1 if it does not name a vbucket
+     */
+    static int vbucketOf(String database) {
+        int slash = database.indexOf('/');
+        if(slash < 0) {
+            return -1;
+        }
+        int end = database.indexOf(';', slash + 1);
+        if(end < 0) {
+            end = database.length();
+        }
+        if(end == slash + 1) {
+            return -1;
+        }
+        int result = 0;
+        for(int i = slash + 1; i < end; i++) {
+            char c = database.charAt(i);
+            if(c < '0' || c > '9' || result > 100000) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * @return the bucket part of the database name
+     */
+    static String bucketOf(String database) {
+        int slash = database.indexOf('/');
+        if(slash < 0) {
+            return database;
+        }
+        return database.substring(0, slash);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RevisionCache bounded to a number of entries, evicting the least recently
+ * used ones.
+ *
+ * Entries are spread over independently locked segments by key hash, each
+ * segment holds an equal share of maxEntries and evicts on its own.
+ */
+public class InMemoryRevisionCache implements RevisionCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final class Segment extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final AtomicLong evictions;
+
+        Segment(int maxEntries, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if(size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public InMemoryRevisionCache() {
+        this(1 << 20);
+    }
+
+    /**
+     * @param maxEntries the number of revisions kept at most
+     */
+    public InMemoryRevisionCache(int maxEntries) {
+        if(maxEntries < SEGMENTS) {
+            throw new IllegalArgumentException("maxEntries must be at least " + SEGMENTS);
+        }
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENTS, evictions);
+        }
+    }
+
+    private static String key(String database, String id) {
+        return database + '\u0000' + id;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public String get(String database, String id) {
+        String rev = lookup(database, id);
+        (rev != null ? hits : misses).incrementAndGet();
+        return rev;
+    }
+
+    /**
+     * Only a recorded revision equal to rev counts as a hit
+     */
+    @Override
+    public boolean hasRevision(String database, String id, String rev) {
+        boolean found = rev != null && rev.equals(lookup(database, id));
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    private String lookup(String database, String id) {
+        String key = key(database, id);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    @Override
+    public void put(String database, String id, String rev) {
+        String key = key(database, id);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, rev);
+        }
+    }
+
+    @Override
+    public void invalidate(String database, String id) {
+        String key = key(database, id);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("size", size());
+        result.put("max_entries", maxEntries);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.JsonStringEncoder;
+
+/**
+ * Writes CAPI responses.
+ *
+ * Constant bodies are encoded once and written as bytes.  Everything else is
+ * written to the response with one JsonGenerator per response; the plain
+ * maps, lists and scalars behaviors return are written directly and only
+ * other objects go through the ObjectMapper.
+ *
+ * Generators are not kept per thread: a JsonGenerator is bound to the stream
+ * it was created for, and its encoding buffers already come from the
+ * JsonFactory's per-thread BufferRecycler, so creating one per response is
+ * cheap.
+ */
+final class JsonResponses {
+
+    static final byte[] OK = utf8("{\"ok\":true}");
+    static final byte[] TOO_LARGE = utf8("{\"error\":\"too_large\",\"reason\":\"the request entity is too large\"}");
+
+    static final String BAD_REQUEST = "bad_request";
+    static final String NOT_FOUND = "not_found";
+    static final String SERVICE_UNAVAILABLE = "service_unavailable";
+    static final String UNSUPPORTED_MEDIA_TYPE = "unsupported_media_type";
+
+    private static final int MAX_ERROR_BODIES = 256;
+
+    private final JsonFactory jsonFactory;
+    private final ConcurrentHashMap<String, byte[]> errorBodies = new ConcurrentHashMap<>();
+
+    /**
+     * @param jsonFactory a factory with an ObjectMapper as codec
+     */
+    JsonResponses(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+        errorBody(NOT_FOUND, "missing");
+        errorBody(SERVICE_UNAVAILABLE, "too many concurrent requests");
+    }
+
+    /**
+     * @return the encoded {"error":error,"reason":reason} body, reused for repeated reasons
+     */
+    byte[] errorBody(String error, String reason) {
+        String key = error + '\u0000' + reason;
+        byte[] body = errorBodies.get(key);
+        if(body == null) {
+            JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+            body = utf8("{\"error\":\"" + new String(encoder.quoteAsString(error))
+                    + "\",\"reason\":\"" + new String(encoder.quoteAsString(String.valueOf(reason))) + "\"}");
+            if(errorBodies.size() < MAX_ERROR_BODIES) {
+                errorBodies.put(key, body);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Send an already encoded JSON body
+     */
+    static void send(HttpServletResponse resp, int status, byte[] body) throws IOException {
+        resp.setStatus(status);
+        resp.setContentType("application/json");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+    JsonGenerator generator(OutputStream os) throws IOException {
+        return jsonFactory.createJsonGenerator(os, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Write a value and close the generator
+     */
+    void write(OutputStream os, Object value) throws IOException {
+        JsonGenerator generator = generator(os);
+        writeValue(generator, value);
+        generator.close();
+    }
+
+    /**
+     * Write a JSON value, walking maps and lists directly
+     */
+    void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if(value == null) {
+            generator.writeNull();
+        } else if(value instanceof String) {
+            generator.writeString((String)value);
+        } else if(value instanceof Map) {
+            generator.writeStartObject();
+            for (Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if(value instanceof List) {
+            generator.writeStartArray();
+            for (Object element : (List<?>)value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else if(value instanceof Boolean) {
+            generator.writeBoolean((Boolean)value);
+        } else if(value instanceof Integer) {
+            generator.writeNumber((Integer)value);
+        } else if(value instanceof Long) {
+            generator.writeNumber((Long)value);
+        } else {
+            generator.writeObject(value);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.capi.CAPIBehavior;
+
+/**
+ * In-process store for _local documents, the checkpoint documents of
+ * replicators.
+ *
+ * A store is either
+ * <ul>
+ * <li>a cache in front of the behavior.  Writes go through to the behavior's
+ * storeLocalDocument before they are answered, so the client gets the
+ * behavior's revision and sees its failures; only reads are saved.  They are
+ * served from memory for up to ttlMillis, then read through to
+ * getLocalDocument again.  The cache is emptied whenever it grows past
+ * maxEntries.  Only use it when no one else changes the local documents of
+ * the behavior, or the cached ones are served until they expire.</li>
+ * <li>a store of its own, so checkpoint traffic never reaches the behavior.
+ * Documents are kept in memory and written behind, every flushIntervalMillis
+ * and on close, by appending a line per changed document to a log file.
+ * When superseded lines outnumber the current documents by more than
+ * COMPACTION_SLACK, the log is rewritten with only the current ones.  On
+ * open the log is replayed and a torn last line is cut off.  A crash loses
+ * at most the last flush interval of updates, which only makes a replicator
+ * resume from an earlier checkpoint.  Revisions are "0-N", counting up with
+ * every update.</li>
+ * </ul>
+ *
+ * CAPIServlet only uses a store when it is given one.  The _local documents
+ * belong to the behavior: a behavior may keep them next to the data they
+ * describe, so they are restored or rolled back together, and other servers
+ * in front of the same backend may need to see them.  A store of its own
+ * also needs a file that outlives the server, which only the application
+ * can pick.  Use one when the behavior has no better place for checkpoints.
+ */
+public class LocalDocumentStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalDocumentStore.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    // superseded log lines tolerated before the log is compacted
+    private static final int COMPACTION_SLACK = 1024;
+
+    private static final class Entry {
+        final String database;
+        final String id;
+        final Map<String, Object> document;
+        final long generation;
+        final long expiresNanos;
+
+        Entry(String database, String id, Map<String, Object> document, long generation, long expiresNanos) {
+            this.database = database;
+            this.id = id;
+            this.document = document;
+            this.generation = generation;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final CAPIBehavior capiBehavior;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final Path file;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ConcurrentHashMap<String, Entry> documents = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    // only touched while loading and by flush(), which is synchronized
+    private FileChannel channel;
+    private long logRecords;
+
+    /**
+     * A write-through cache in front of the behavior, with the default time to live and size
+     */
+    public LocalDocumentStore(CAPIBehavior capiBehavior) {
+        this(capiBehavior, DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param capiBehavior the behavior the documents are stored in
+     * @param ttlMillis how long a document is served from memory
+     * @param maxEntries the cache is emptied when it grows past this many documents
+     */
+    public LocalDocumentStore(CAPIBehavior capiBehavior, long ttlMillis, int maxEntries) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.capiBehavior = capiBehavior;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+        this.file = null;
+        this.flusher = null;
+    }
+
+    private LocalDocumentStore(Path file, long flushIntervalMillis) {
+        this.capiBehavior = null;
+        this.ttlNanos = 0;
+        this.maxEntries = Integer.MAX_VALUE;
+        this.file = file;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capi-local-document-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open a store persisted in a log file, creating it if needed
+     */
+    public static LocalDocumentStore open(Path file, long flushIntervalMillis) throws IOException {
+        LocalDocumentStore store = new LocalDocumentStore(file, flushIntervalMillis);
+        try {
+            store.load();
+        } catch (IOException | RuntimeException e) {
+            store.flusher.shutdownNow();
+            if(store.channel != null) {
+                store.channel.close();
+            }
+            throw e;
+        }
+        return store;
+    }
+
+    private static String key(String database, String id) {
+        return database + '\u0000' + id;
+    }
+
+    private void load() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        byte[] log = Files.readAllBytes(file);
+        long records = 0;
+        int valid = 0;
+        int start = 0;
+        for (int end = 0; end < log.length; end++) {
+            if(log[end] != '\n') {
+                continue;
+            }
+            if(!replay(log, start, end - start)) {
+                break;
+            }
+            records++;
+            start = end + 1;
+            valid = start;
+        }
+        if(valid < log.length) {
+            logger.warn("cutting off {} bytes of incomplete records at the end of local document log {}",
+                    log.length - valid, file);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        logRecords = records;
+        logger.debug("loaded {} local documents from {}", documents.size(), file);
+
+        if(needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * Apply one line of the log
+     *
+     * @return false if the line is damaged
+     */
+    @SuppressWarnings("unchecked")
+    private boolean replay(byte[] log, int offset, int length) throws IOException {
+        Map<String, Object> record;
+        try {
+            record = mapper.readValue(log, offset, length, Map.class);
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+        if(record == null) {
+            return false;
+        }
+        Object database = record.get("database");
+        Object id = record.get("id");
+        Object document = record.get("document");
+        if(!(database instanceof String) || !(id instanceof String) || !(document instanceof Map)) {
+            return false;
+        }
+        Map<String, Object> doc = (Map<String, Object>)document;
+        documents.put(key((String)database, (String)id),
+                new Entry((String)database, (String)id, doc, generationOf(doc.get("_rev")), Long.MAX_VALUE));
+        return true;
+    }
+
+    /**
+     * @return true if superseded lines outnumber the current documents by more than COMPACTION_SLACK
+     */
+    private boolean needsCompaction() {
+        return logRecords > 2L * documents.size() + COMPACTION_SLACK;
+    }
+
+    private byte[] record(Entry entry) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("database", entry.database);
+        record.put("id", entry.id);
+        record.put("document", entry.document);
+        // JSON escapes line breaks inside strings, so a record is a single line
+        byte[] json = mapper.writeValueAsBytes(record);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    /**
+     * @return N of a "0-N" revision, 0 for anything else
+     */
+    private static long generationOf(Object rev) {
+        if(rev instanceof String && ((String)rev).startsWith("0-")) {
+            try {
+                return Long.parseLong(((String)rev).substring(2));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the document, or null if there is none
+     */
+    public Map<String, Object> get(String database, String id) {
+        reads.incrementAndGet();
+        String key = key(database, id);
+        Entry entry = documents.get(key);
+        if(entry != null && (file != null || System.nanoTime() - entry.expiresNanos < 0)) {
+            hits.incrementAndGet();
+            return entry.document;
+        }
+        if(capiBehavior == null) {
+            return null;
+        }
+        Map<String, Object> doc = capiBehavior.getLocalDocument(database, id);
+        if(doc == null) {
+            documents.remove(key, entry);
+        } else {
+            cache(key, entry, new Entry(database, id, doc, 0, System.nanoTime() + ttlNanos));
+        }
+        return doc;
+    }
+
+    /**
+     * Replace the cached entry unless it changed since it was read
+     */
+    private void cache(String key, Entry expected, Entry entry) {
+        if(documents.size() >= maxEntries) {
+            documents.clear();
+            expected = null;
+        }
+        if(expected == null) {
+            documents.putIfAbsent(key, entry);
+        } else {
+            documents.replace(key, expected, entry);
+        }
+    }
+
+    /**
+     * Store a document.  With a behavior it is stored right away, otherwise
+     * it is written out with the next flush.
+     *
+     * @return the new revision of the document, or null if the behavior did not store it
+     */
+    public String put(String database, String id, Map<String, Object> document) {
+        writes.incrementAndGet();
+        String key = key(database, id);
+        if(capiBehavior != null) {
+            // a failed write must not leave the previous version cached as if it were current
+            documents.remove(key);
+            String rev = capiBehavior.storeLocalDocument(database, id, document);
+            if(rev != null) {
+                Map<String, Object> doc = new LinkedHashMap<>(document);
+                doc.put("_id", id);
+                doc.put("_rev", rev);
+                Entry entry = new Entry(database, id, doc, 0, System.nanoTime() + ttlNanos);
+                if(documents.size() >= maxEntries) {
+                    documents.clear();
+                }
+                documents.put(key, entry);
+            }
+            return rev;
+        }
+        Entry entry = documents.compute(key, (k, previous) -> {
+            long generation = (previous == null ? generationOf(document.get("_rev")) : previous.generation) + 1;
+            Map<String, Object> doc = new LinkedHashMap<>(document);
+            doc.put("_id", id);
+            doc.put("_rev", "0-" + generation);
+            return new Entry(database, id, doc, generation, Long.MAX_VALUE);
+        });
+        dirty.add(key);
+        return (String)entry.document.get("_rev");
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("unable to flush local documents", e);
+        }
+    }
+
+    /**
+     * Append the documents changed since the last flush to the log, and
+     * compact it if needed.  Nothing to do for a store in front of a behavior.
+     */
+    public synchronized void flush() throws IOException {
+        if(file == null || dirty.isEmpty()) {
+            return;
+        }
+        flushes.incrementAndGet();
+        // everything changed after this point is written with the next flush
+        List<String> keys = new ArrayList<>(dirty);
+        dirty.removeAll(keys);
+        long start = channel.position();
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            long count = 0;
+            for (String key : keys) {
+                Entry entry = documents.get(key);
+                if(entry != null) {
+                    records.write(record(entry));
+                    count++;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            logRecords += count;
+        } catch (IOException | RuntimeException e) {
+            dirty.addAll(keys);
+            // do not leave a partial record for the next append to follow
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+        if(needsCompaction()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.warn("unable to compact local document log " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log with only the current documents.  The old log stays in
+     * place until the compacted one has replaced it.
+     */
+    private void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        long count = 0;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Entry entry : documents.values()) {
+                records.write(record(entry));
+                count++;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while(buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        logRecords = count;
+        compactions.incrementAndGet();
+        logger.debug("compacted local document log {} to {} documents", file, count);
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("documents", documents.size());
+        result.put("reads", reads.get());
+        result.put("hits", hits.get());
+        result.put("writes", writes.get());
+        if(file != null) {
+            result.put("file", file.toString());
+            result.put("dirty", dirty.size());
+            result.put("flushes", flushes.get());
+            result.put("compactions", compactions.get());
+        } else {
+            result.put("max_entries", maxEntries);
+        }
+        return result;
+    }
+
+    /**
+     * Stop flushing in the background and write out what is left
+     */
+    @Override
+    public void close() throws IOException {
+        if(flusher == null) {
+            documents.clear();
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
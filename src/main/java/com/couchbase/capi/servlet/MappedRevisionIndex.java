@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OffHeapRevisionIndex kept in memory-mapped files, so it survives restarts.
+ *
+ * Each segment lives in its own file in the index directory: a 64 byte
+ * header followed by the slots of its {@link RevisionTable}.  Updates go
+ * straight to the mapped pages and reach the files through the page cache,
+ * so after a restart the index is usable as soon as the files are mapped.
+ *
+ * Revisions are recorded as soon as _bulk_docs returns, before the behavior
+ * has necessarily made them durable.  After a crash the index may therefore
+ * hold revisions the backend lost, and answering from it would make XDCR
+ * skip those documents for good.  So only a cleanly closed index is kept;
+ * segments that were not closed cleanly are started over empty, which only
+ * sends their documents to the behavior again.  If the backend is restored
+ * or rolled back while the server is down, call {@link #invalidateAll()}.
+ */
+public class MappedRevisionIndex extends OffHeapRevisionIndex implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedRevisionIndex.class);
+
+    private static final long MAGIC = 0x4341504952455631L; // "CAPIREV1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int SLOTS_OFFSET = 12;
+    private static final int CLEAN_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+
+    private final Path directory;
+    private final MappedByteBuffer[] files;
+    private final RevisionTable[] tables;
+    private volatile boolean closed;
+
+    private MappedRevisionIndex(Path directory, MappedByteBuffer[] files, RevisionTable[] tables) {
+        super(tables);
+        this.directory = directory;
+        this.files = files;
+        this.tables = tables;
+    }
+
+    /**
+     * Open the index in a directory, creating it if needed.  Segment files
+     * sized for a different maxEntries are started over empty.
+     *
+     * @param directory the directory holding the segment files
+     * @param maxEntries the number of revisions to make room for
+     */
+    public static MappedRevisionIndex open(Path directory, long maxEntries) throws IOException {
+        int slots = slotsPerSegment(maxEntries);
+        Files.createDirectories(directory);
+
+        MappedByteBuffer[] files = new MappedByteBuffer[segmentCount()];
+        RevisionTable[] tables = new RevisionTable[segmentCount()];
+        for (int i = 0; i < files.length; i++) {
+            Path file = directory.resolve(String.format("revisions-%02d.idx", i));
+            files[i] = map(file, slots);
+            tables[i] = openTable(file, files[i], slots);
+        }
+        return new MappedRevisionIndex(directory, files, tables);
+    }
+
+    private static MappedByteBuffer map(Path file, int slots) throws IOException {
+        long length = HEADER_SIZE + (long)slots * RevisionTable.SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if(channel.size() != 0 && channel.size() != length) {
+                logger.warn("revision index segment {} has a different size, starting it over", file);
+                channel.truncate(0);
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    private static RevisionTable openTable(Path file, MappedByteBuffer map, int slots) {
+        map.position(HEADER_SIZE);
+        ByteBuffer slotBuffer = map.slice();
+        map.position(0);
+
+        int size = 0;
+        if(map.getLong(MAGIC_OFFSET) != MAGIC) {
+            if(map.getLong(MAGIC_OFFSET) != 0) {
+                logger.warn("revision index segment {} is not recognized, starting it over", file);
+                clear(map);
+            }
+            writeHeader(map, slots);
+        } else if(map.getInt(CLEAN_OFFSET) == 1) {
+            size = (int)map.getLong(SIZE_OFFSET);
+        } else {
+            // its revisions may be ahead of what the behavior made durable
+            logger.warn("revision index segment {} was not closed cleanly, starting it over", file);
+            clear(map);
+            writeHeader(map, slots);
+        }
+        // marked dirty until closed again
+        map.putInt(CLEAN_OFFSET, 0);
+        map.force();
+        return new RevisionTable(slotBuffer, size);
+    }
+
+    private static void writeHeader(MappedByteBuffer map, int slots) {
+        map.putLong(MAGIC_OFFSET, MAGIC);
+        map.putInt(VERSION_OFFSET, VERSION);
+        map.putInt(SLOTS_OFFSET, slots);
+    }
+
+    private static void clear(MappedByteBuffer map) {
+        for (int offset = 0; offset < map.capacity(); offset += 8) {
+            map.putLong(offset, 0);
+        }
+    }
+
+    /**
+     * Write all updates through to the files.  They are still dropped on the
+     * next open unless the index is closed cleanly.
+     */
+    public void flush() {
+        for (MappedByteBuffer file : files) {
+            file.force();
+        }
+    }
+
+    /**
+     * Flush the index and mark it clean.  The index must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < files.length; i++) {
+            files[i].force();
+            files[i].putLong(SIZE_OFFSET, tables[i].size());
+            files[i].putInt(CLEAN_OFFSET, 1);
+            files[i].force();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = super.getStats();
+        result.put("directory", directory.toString());
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.List;
+
+/**
+ * Deals the vbuckets out round robin, vbucket i goes to server i % servers.
+ *
+ * Weights are ignored, and adding or removing a server moves almost every
+ * vbucket.  This is the default, as it is the map every earlier version
+ * served.
+ */
+public class ModuloVBucketMapStrategy implements VBucketMapStrategy {
+
+    @Override
+    public int[] assign(String bucket, List<String> servers, double[] weights, int numVbuckets) {
+        int[] map = new int[numVbuckets];
+        for(int i=0; i < numVbuckets; i++) {
+            map[i] = i % servers.size();
+        }
+        return map;
+    }
+
+}
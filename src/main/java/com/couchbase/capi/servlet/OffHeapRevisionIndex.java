@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RevisionCache keeping revisions outside of the Java heap.
+ *
+ * Documents are keyed by a 64-bit hash of their database and id, and their
+ * revision is stored as the primitives of a Couchbase revision
+ * "seqno-CCCCCCCCCCCCCCCCEEEEEEEEFFFFFFFF": the sequence number, the CAS and
+ * the expiration and flags.  Each entry takes 32 bytes of direct memory and
+ * nothing on the heap, so hundreds of millions of documents cost the
+ * garbage collector nothing.
+ *
+ * The index is split into segments by the high bits of the hash, each an
+ * independently locked {@link RevisionTable}.  A revision that is not in the
+ * canonical Couchbase form cannot be stored and is simply not cached.  Two
+ * documents with colliding hashes share an entry; that can only make
+ * _revs_diff ask the behavior again, or skip a revision equal to one seen
+ * for the other document.
+ *
+ * Behaviors may use the index directly, through the primitive
+ * {@link #put(String, String, long, long, long)} and
+ * {@link #contains(String, String, long, long, long)}.
+ */
+public class OffHeapRevisionIndex implements RevisionCache {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int MAX_SLOTS_PER_SEGMENT = 1 << 25;
+
+    private final RevisionTable[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxEntries the number of revisions to make room for
+     */
+    public OffHeapRevisionIndex(long maxEntries) {
+        this(allocate(slotsPerSegment(maxEntries)));
+    }
+
+    OffHeapRevisionIndex(RevisionTable[] segments) {
+        if(segments.length != 1 << SEGMENT_BITS) {
+            throw new IllegalArgumentException("an index has " + (1 << SEGMENT_BITS) + " segments");
+        }
+        this.segments = segments;
+    }
+
+    static int segmentCount() {
+        return 1 << SEGMENT_BITS;
+    }
+
+    /**
+     * @return the power of two number of slots each segment needs for maxEntries at 3/4 load
+     */
+    static int slotsPerSegment(long maxEntries) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        long perSegment = (maxEntries * 4 / 3 + segmentCount() - 1) / segmentCount();
+        if(perSegment > MAX_SLOTS_PER_SEGMENT) {
+            throw new IllegalArgumentException("maxEntries is too large, at most "
+                    + (long)MAX_SLOTS_PER_SEGMENT * segmentCount() * 3 / 4 + " are supported");
+        }
+        return Math.max(2, Integer.highestOneBit((int)Math.max(1, perSegment - 1)) << 1);
+    }
+
+    private static RevisionTable[] allocate(int slotsPerSegment) {
+        RevisionTable[] segments = new RevisionTable[segmentCount()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new RevisionTable(ByteBuffer.allocateDirect(slotsPerSegment * RevisionTable.SLOT_SIZE), 0);
+        }
+        return segments;
+    }
+
+    /**
+     * 64-bit FNV-1a over the database name and the id, finished with the
+     * MurmurHash3 mixer so the high and low bits are equally good.  Never 0.
+     */
+    public static long hash(String database, String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < database.length(); i++) {
+            h = (h ^ database.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < id.length(); i++) {
+            h = (h ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private RevisionTable segmentFor(long hash) {
+        return segments[(int)(hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * Record the revision of a document
+     */
+    public void put(String database, String id, long seqno, long cas, long expiryAndFlags) {
+        long hash = hash(database, id);
+        if(segmentFor(hash).put(hash, seqno, cas, expiryAndFlags)) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if exactly this revision is recorded for the document
+     */
+    public boolean contains(String database, String id, long seqno, long cas, long expiryAndFlags) {
+        long hash = hash(database, id);
+        boolean contains = segmentFor(hash).matches(hash, seqno, cas, expiryAndFlags);
+        (contains ? hits : misses).incrementAndGet();
+        return contains;
+    }
+
+    @Override
+    public String get(String database, String id) {
+        long hash = hash(database, id);
+        long[] revision = new long[3];
+        if(!segmentFor(hash).read(hash, revision)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return format(revision[0], revision[1], revision[2]);
+    }
+
+    @Override
+    public boolean hasRevision(String database, String id, String rev) {
+        if(!isIndexable(rev)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        int dash = rev.indexOf('-');
+        return contains(database, id, parseSeqno(rev, dash),
+                parseHex(rev, dash + 1, dash + 17), parseHex(rev, dash + 17, dash + 33));
+    }
+
+    @Override
+    public void put(String database, String id, String rev) {
+        if(!isIndexable(rev)) {
+            // an older revision must not be taken for the current one
+            rejected.incrementAndGet();
+            invalidate(database, id);
+            return;
+        }
+        int dash = rev.indexOf('-');
+        put(database, id, parseSeqno(rev, dash),
+                parseHex(rev, dash + 1, dash + 17), parseHex(rev, dash + 17, dash + 33));
+    }
+
+    @Override
+    public void invalidate(String database, String id) {
+        long hash = hash(database, id);
+        segmentFor(hash).remove(hash);
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (RevisionTable segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (RevisionTable segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getCapacity() {
+        return (long)segments[0].capacity() * segments.length;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("size", size());
+        result.put("capacity", getCapacity());
+        result.put("bytes", getCapacity() * RevisionTable.SLOT_SIZE);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("rejected", rejected.get());
+        return result;
+    }
+
+    /**
+     * @return true if the revision is in the canonical "seqno-" + 32 lower case
+     *  hex digits form, which the index stores without loss
+     */
+    public static boolean isIndexable(String rev) {
+        if(rev == null) {
+            return false;
+        }
+        int dash = rev.indexOf('-');
+        // at most 18 digits, so the sequence number always fits in a long
+        if(dash < 1 || dash > 18 || rev.length() != dash + 33) {
+            return false;
+        }
+        if(rev.charAt(0) == '0' && dash > 1) {
+            return false;
+        }
+        for (int i = 0; i < dash; i++) {
+            char c = rev.charAt(i);
+            if(c < '0' || c > '9') {
+                return false;
+            }
+        }
+        for (int i = dash + 1; i < rev.length(); i++) {
+            char c = rev.charAt(i);
+            if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseSeqno(String rev, int dash) {
+        long seqno = 0;
+        for (int i = 0; i < dash; i++) {
+            seqno = seqno * 10 + (rev.charAt(i) - '0');
+        }
+        return seqno;
+    }
+
+    private static long parseHex(String rev, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = rev.charAt(i);
+            value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    private static String format(long seqno, long cas, long expiryAndFlags) {
+        StringBuilder result = new StringBuilder(52);
+        result.append(seqno).append('-');
+        appendHex(result, cas);
+        appendHex(result, expiryAndFlags);
+        return result.toString();
+    }
+
+    private static void appendHex(StringBuilder result, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            result.append(Character.forDigit((int)(value >>> shift) & 0xf, 16));
+        }
+    }
+}
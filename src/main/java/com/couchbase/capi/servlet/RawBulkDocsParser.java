@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.couchbase.capi.RawDocument;
+
+/**
+ * Splits a buffered _bulk_docs request into RawDocuments, parsing only the
+ * meta of each document and slicing the body out of the request buffer.
+ *
+ * For byte input the parser reports the offset of the last consumed byte as
+ * the character offset of its current location, which is what the slice
+ * boundaries are computed from.
+ */
+class RawBulkDocsParser {
+
+    private final JsonFactory jsonFactory;
+
+    RawBulkDocsParser(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    List<RawDocument> parse(RequestBody body) throws IOException {
+        List<RawDocument> result = new ArrayList<>();
+
+        // offsets are array indexes for array input, and relative to the body for stream input
+        ByteBuffer contents = body.contents();
+        ByteBuffer request;
+        JsonParser parser;
+        if(contents.hasArray()) {
+            request = ByteBuffer.wrap(contents.array());
+            parser = jsonFactory.createJsonParser(contents.array(),
+                    contents.arrayOffset() + contents.position(), contents.remaining());
+        } else {
+            request = contents.slice();
+            parser = jsonFactory.createJsonParser(body.asInputStream());
+        }
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("_bulk_docs request body must be an object", parser.getCurrentLocation());
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(!"docs".equals(fieldName) || token != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while(parser.nextToken() != JsonToken.END_ARRAY) {
+                    if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                        throw new JsonParseException("_bulk_docs docs must be objects", parser.getCurrentLocation());
+                    }
+                    result.add(parseDocument(parser, request));
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return result;
+    }
+
+    /**
+     * Parse one document, the parser must be positioned on its START_OBJECT
+     */
+    private RawDocument parseDocument(JsonParser parser, ByteBuffer request) throws IOException {
+        int docStart = currentOffset(parser);
+        Map<String, Object> meta = null;
+        String bodyField = null;
+        ByteBuffer body = null;
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if("meta".equals(fieldName) && token == JsonToken.START_OBJECT) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> parsedMeta = parser.readValueAs(Map.class);
+                meta = parsedMeta;
+            } else if("json".equals(fieldName) || "base64".equals(fieldName)) {
+                bodyField = fieldName;
+                body = sliceValue(parser, request);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if(body == null) {
+            // no separate body (plain CouchDB document or deletion), pass the whole thing through
+            body = slice(request, docStart, currentOffset(parser) + 1);
+        }
+        return new RawDocument(meta, bodyField, body);
+    }
+
+    private ByteBuffer sliceValue(JsonParser parser, ByteBuffer request) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            int start = currentOffset(parser);
+            parser.skipChildren();
+            return slice(request, start, currentOffset(parser) + 1);
+        } else if(token == JsonToken.VALUE_STRING) {
+            int start = currentOffset(parser);
+            // finish the lazily parsed string so the location moves to the closing quote
+            parser.getText();
+            return slice(request, start, currentOffset(parser) + 1);
+        }
+        // numbers and literals are short, their text is their encoding
+        return ByteBuffer.wrap(parser.getText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int currentOffset(JsonParser parser) {
+        return (int)parser.getCurrentLocation().getCharOffset();
+    }
+
+    private static ByteBuffer slice(ByteBuffer request, int start, int end) {
+        ByteBuffer result = request.duplicate();
+        result.position(start);
+        result.limit(end);
+        return result.slice();
+    }
+}
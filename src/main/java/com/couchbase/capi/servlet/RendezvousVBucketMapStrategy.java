@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Assigns vbuckets by weighted rendezvous hashing.
+ *
+ * Every server scores every vbucket with a hash of the bucket, the server's
+ * hostname and the vbucket, scaled by the server's weight, and the highest
+ * score wins.  A server therefore gets a share of the vbuckets proportional
+ * to its weight, and when a server is added only the vbuckets it wins move,
+ * when one is removed only the vbuckets it held move.  Every other vbucket
+ * stays where it was, so replication streams are left alone.
+ *
+ * The shares are statistical, with 1024 vbuckets a server typically ends up
+ * within a few percent of its exact share.
+ */
+public class RendezvousVBucketMapStrategy implements VBucketMapStrategy {
+
+    @Override
+    public int[] assign(String bucket, List<String> servers, double[] weights, int numVbuckets) {
+        int serverCount = servers.size();
+        long[] seeds = new long[serverCount];
+        boolean weighted = false;
+        for(int s=0; s < serverCount; s++) {
+            seeds[s] = hash(bucket + '\u0000' + servers.get(s));
+            weighted |= weights[s] > 0;
+        }
+
+        int[] map = new int[numVbuckets];
+        for(int i=0; i < numVbuckets; i++) {
+            long vbucket = i * 0x9e3779b97f4a7c15L;
+            int winner = 0;
+            double best = Double.NEGATIVE_INFINITY;
+            for(int s=0; s < serverCount; s++) {
+                // servers without a positive weight only get vbuckets if nobody has one
+                double weight = weighted ? weights[s] : 1;
+                if(!(weight > 0)) {
+                    continue;
+                }
+                // -weight / ln(u) for u uniform in (0, 1)
+                double u = ((fmix(seeds[s] ^ vbucket) >>> 11) + 0.5) / (1L << 53);
+                double score = -weight / Math.log(u);
+                if(score > best) {
+                    best = score;
+                    winner = s;
+                }
+            }
+            map[i] = winner;
+        }
+        return map;
+    }
+
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return fmix(hash);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93fe51afe53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * A request body held in a buffer from a BufferPool.
+ *
+ * A body with a Content-Length is read into a buffer of exactly that size.
+ * Only bodies without one (chunked transfer encoding, or decoded from a
+ * compressed body) start from a size hint and grow as needed.  Either way a
+ * body may not exceed maxLength.  The buffer goes back to the pool on close,
+ * nothing obtained from the body may be used afterwards.
+ */
+final class RequestBody implements AutoCloseable {
+
+    private final BufferPool pool;
+    private final int contentLength;
+    private final int maxLength;
+    private ByteBuffer buffer;
+
+    /**
+     * @param contentLength the exact length of the body, or -1 if unknown
+     * @param sizeHint the capacity to start with if the length is unknown, ignored if not positive
+     * @param maxLength the largest body accepted
+     * @throws RequestBodyTooLargeException if the Content-Length is already over maxLength
+     */
+    RequestBody(BufferPool pool, int contentLength, int sizeHint, int maxLength)
+            throws RequestBodyTooLargeException {
+        if(contentLength > maxLength) {
+            throw new RequestBodyTooLargeException(maxLength);
+        }
+        this.pool = pool;
+        this.contentLength = contentLength;
+        this.maxLength = maxLength;
+        int capacity = contentLength >= 0 ? contentLength
+                : sizeHint > 0 ? Math.min(sizeHint, maxLength) : pool.getMinBufferSize();
+        this.buffer = pool.acquire(capacity);
+    }
+
+    /**
+     * Read a whole body from a blocking stream
+     *
+     * @see #RequestBody(BufferPool, int, int, int)
+     */
+    static RequestBody read(InputStream is, int contentLength, int sizeHint, BufferPool pool, int maxLength)
+            throws IOException {
+        RequestBody body = new RequestBody(pool, contentLength, sizeHint, maxLength);
+        try {
+            body.readFrom(is);
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
+        }
+        return body;
+    }
+
+    /**
+     * Append everything the stream has to offer, until the Content-Length is
+     * reached or, without one, until the stream reports end of stream
+     *
+     * @throws EOFException if the stream ends before Content-Length bytes
+     */
+    void readFrom(InputStream is) throws IOException {
+        if(buffer.hasArray()) {
+            while(!isComplete()) {
+                if(!buffer.hasRemaining()) {
+                    // probe for the end of the stream before growing a full buffer
+                    int next = is.read();
+                    if(next < 0) {
+                        break;
+                    }
+                    append(next);
+                    continue;
+                }
+                int toRead = contentLength >= 0 ? contentLength - buffer.position() : buffer.remaining();
+                int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), toRead);
+                if(read < 0) {
+                    break;
+                }
+                checkLength(buffer.position() + (long)read);
+                buffer.position(buffer.position() + read);
+            }
+        } else {
+            byte[] scratch = new byte[8192];
+            while(!isComplete()) {
+                int toRead = contentLength >= 0 ? Math.min(scratch.length, contentLength - buffer.position()) : scratch.length;
+                int read = is.read(scratch, 0, toRead);
+                if(read < 0) {
+                    break;
+                }
+                append(scratch, 0, read);
+            }
+        }
+        checkComplete();
+    }
+
+    /**
+     * Make sure a body with a Content-Length was not cut short
+     *
+     * @throws EOFException if fewer than Content-Length bytes arrived
+     */
+    void checkComplete() throws EOFException {
+        if(contentLength >= 0 && !isComplete()) {
+            throw new EOFException("request body ended after " + buffer.position()
+                    + " of its " + contentLength + " bytes");
+        }
+    }
+
+    /**
+     * @return true once Content-Length bytes are in, never for bodies without one
+     */
+    private boolean isComplete() {
+        return contentLength >= 0 && buffer.position() >= contentLength;
+    }
+
+    private void append(int b) throws IOException {
+        checkLength(buffer.position() + 1L);
+        ensureRemaining(1);
+        buffer.put((byte)b);
+    }
+
+    void append(byte[] bytes, int offset, int length) throws IOException {
+        checkLength(buffer.position() + (long)length);
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    private void ensureRemaining(int needed) throws IOException {
+        if(buffer.remaining() >= needed) {
+            return;
+        }
+        long required = (long)buffer.position() + needed;
+        if(contentLength >= 0) {
+            throw new IOException("request body is longer than its Content-Length of " + contentLength);
+        }
+        int capacity = (int)Math.min(maxLength, Math.max((long)buffer.capacity() * 2, required));
+        ByteBuffer larger = pool.acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        buffer = larger;
+    }
+
+    private void checkLength(long length) throws RequestBodyTooLargeException {
+        if(length > maxLength) {
+            throw new RequestBodyTooLargeException(maxLength);
+        }
+    }
+
+    int length() {
+        return buffer.position();
+    }
+
+    /**
+     * @return a view of the body, positioned at its first byte
+     */
+    ByteBuffer contents() {
+        ByteBuffer result = buffer.duplicate();
+        result.flip();
+        return result;
+    }
+
+    InputStream asInputStream() {
+        final ByteBuffer contents = contents();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return contents.hasRemaining() ? contents.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(!contents.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, contents.remaining());
+                contents.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public int available() {
+                return contents.remaining();
+            }
+        };
+    }
+
+    <T> T parse(ObjectMapper mapper, Class<T> type) throws IOException {
+        if(buffer.hasArray()) {
+            return mapper.readValue(buffer.array(), buffer.arrayOffset(), buffer.position(), type);
+        }
+        return mapper.readValue(asInputStream(), type);
+    }
+
+    @Override
+    public String toString() {
+        ByteBuffer contents = contents();
+        byte[] bytes = new byte[contents.remaining()];
+        contents.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        if(buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+
+/**
+ * A request body is larger than the servlet accepts, it is answered with 413
+ */
+class RequestBodyTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    RequestBodyTooLargeException(int maxLength) {
+        super("request body is larger than " + maxLength + " bytes");
+    }
+}
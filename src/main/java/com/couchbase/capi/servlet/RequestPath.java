@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+/**
+ * The segments of a CAPI request URI, found in a single pass.
+ *
+ * Segments are kept as offsets into the URI and only turned into strings
+ * when asked for.  Like String.split, trailing empty segments are dropped.
+ * The positions of the first four segments are kept, which is all the CAPI
+ * routes look at.
+ */
+final class RequestPath {
+
+    enum Special {
+        BULK_DOCS("_bulk_docs"),
+        REVS_DIFF("_revs_diff"),
+        ENSURE_FULL_COMMIT("_ensure_full_commit"),
+        LOCAL("_local"),
+        OTHER(null),
+        NONE(null);
+
+        private final String segment;
+
+        Special(String segment) {
+            this.segment = segment;
+        }
+    }
+
+    private static final Special[] ROUTES = { Special.BULK_DOCS, Special.REVS_DIFF,
+        Special.ENSURE_FULL_COMMIT, Special.LOCAL };
+
+    private static final int MAX_SEGMENTS = 4;
+
+    private final String uri;
+    private final int[] bounds = new int[MAX_SEGMENTS * 2];
+    private int count;
+
+    RequestPath(String uri) {
+        this.uri = uri;
+        int start = uri.startsWith("/") ? 1 : 0;
+        int length = uri.length();
+        int nonEmptyCount = 0;
+        while(true) {
+            int end = uri.indexOf('/', start);
+            if(end < 0) {
+                end = length;
+            }
+            if(count < MAX_SEGMENTS) {
+                bounds[count * 2] = start;
+                bounds[count * 2 + 1] = end;
+            }
+            count++;
+            if(end > start) {
+                nonEmptyCount = count;
+            }
+            if(end == length) {
+                break;
+            }
+            start = end + 1;
+        }
+        // drop trailing empty segments, but keep a single empty one for the root
+        count = Math.max(nonEmptyCount, 1);
+    }
+
+    int size() {
+        return count;
+    }
+
+    String segment(int i) {
+        return uri.substring(bounds[i * 2], bounds[i * 2 + 1]);
+    }
+
+    boolean isEmpty(int i) {
+        return bounds[i * 2] == bounds[i * 2 + 1];
+    }
+
+    boolean isSpecial(int i) {
+        return !isEmpty(i) && uri.charAt(bounds[i * 2]) == '_';
+    }
+
+    /**
+     * @return which of the known special names segment i is, OTHER for an unknown
+     * special, NONE if it is not special at all
+     */
+    Special special(int i) {
+        if(!isSpecial(i)) {
+            return Special.NONE;
+        }
+        int start = bounds[i * 2];
+        int length = bounds[i * 2 + 1] - start;
+        for (Special route : ROUTES) {
+            if(route.segment.length() == length && uri.regionMatches(start, route.segment, 0, length)) {
+                return route;
+            }
+        }
+        return Special.OTHER;
+    }
+
+    String getUri() {
+        return uri;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.Map;
+
+/**
+ * Remembers the current revision of recently written documents.
+ *
+ * CAPIServlet records the revision of every document a behavior accepted
+ * through _bulk_docs or a document PUT, and answers _revs_diff from it: a
+ * requested revision equal to the remembered one is known not to be missing,
+ * everything else is still asked of the behavior.  Only use a cache when
+ * documents are not rolled back behind the server's back, or invalidate them
+ * when they are.
+ */
+public interface RevisionCache {
+
+    /**
+     * @param database the unescaped database name, including the vbucket if any
+     * @param id the document id
+     * @return the last revision recorded for the document, or null
+     */
+    String get(String database, String id);
+
+    /**
+     * @return true if rev is the last revision recorded for the document
+     */
+    default boolean hasRevision(String database, String id, String rev) {
+        return rev != null && rev.equals(get(database, id));
+    }
+
+    /**
+     * Record the current revision of a document
+     */
+    void put(String database, String id, String rev);
+
+    /**
+     * Forget the revision of one document
+     */
+    void invalidate(String database, String id);
+
+    /**
+     * Forget every revision
+     */
+    void invalidateAll();
+
+    Map<String, Object> getStats();
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open addressing hash table of revisions laid out in a ByteBuffer.
+ *
+ * Every slot is 32 bytes: the 64-bit key hash, the revision sequence number,
+ * the CAS and the expiration and flags.  A zero hash marks an empty slot.
+ * Collisions are resolved by linear probing, and removal shifts the rest of
+ * the probe chain back, so no tombstones are left behind.
+ *
+ * Once the table is three quarters full, inserting a new key overwrites the
+ * key occupying its home slot.  That keeps every probe chain intact and the
+ * memory use fixed.  Readers use optimistic reads of the lock and never block
+ * writers.
+ */
+final class RevisionTable {
+
+    static final int SLOT_SIZE = 32;
+
+    private static final int SEQNO = 8;
+    private static final int CAS = 16;
+    private static final int EXPIRY_AND_FLAGS = 24;
+
+    private final ByteBuffer slots;
+    private final int mask;
+    private final int maxSize;
+    private final StampedLock lock = new StampedLock();
+    private int size;
+
+    /**
+     * @param slots the slot storage, a power of two number of slots
+     * @param size the number of occupied slots already in the storage
+     */
+    RevisionTable(ByteBuffer slots, int size) {
+        int capacity = slots.capacity() / SLOT_SIZE;
+        if(capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("the number of slots must be a power of two");
+        }
+        this.slots = slots;
+        this.mask = capacity - 1;
+        this.maxSize = capacity - capacity / 4;
+        this.size = size;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return true if the key is present with exactly this revision
+     */
+    boolean matches(long hash, long seqno, long cas, long expiryAndFlags) {
+        long stamp = lock.tryOptimisticRead();
+        boolean matches = matchesUnlocked(hash, seqno, cas, expiryAndFlags);
+        if(lock.validate(stamp)) {
+            return matches;
+        }
+        stamp = lock.readLock();
+        try {
+            return matchesUnlocked(hash, seqno, cas, expiryAndFlags);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean matchesUnlocked(long hash, long seqno, long cas, long expiryAndFlags) {
+        int slot = find(hash);
+        if(slot < 0) {
+            return false;
+        }
+        int offset = slot * SLOT_SIZE;
+        return slots.getLong(offset + SEQNO) == seqno
+                && slots.getLong(offset + CAS) == cas
+                && slots.getLong(offset + EXPIRY_AND_FLAGS) == expiryAndFlags;
+    }
+
+    /**
+     * Copy the revision of a key
+     *
+     * @param into receives the sequence number, CAS and expiration and flags
+     * @return false if the key is not present
+     */
+    boolean read(long hash, long[] into) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = readUnlocked(hash, into);
+        if(lock.validate(stamp)) {
+            return found;
+        }
+        stamp = lock.readLock();
+        try {
+            return readUnlocked(hash, into);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean readUnlocked(long hash, long[] into) {
+        int slot = find(hash);
+        if(slot < 0) {
+            return false;
+        }
+        int offset = slot * SLOT_SIZE;
+        into[0] = slots.getLong(offset + SEQNO);
+        into[1] = slots.getLong(offset + CAS);
+        into[2] = slots.getLong(offset + EXPIRY_AND_FLAGS);
+        return true;
+    }
+
+    /**
+     * Insert or update the revision of a key
+     *
+     * @return true if another key was evicted to make room
+     */
+    boolean put(long hash, long seqno, long cas, long expiryAndFlags) {
+        long stamp = lock.writeLock();
+        try {
+            int home = (int)hash & mask;
+            int slot = home;
+            // the probe is bounded, the table always has an empty slot
+            for (int probes = 0; probes <= mask; probes++) {
+                long occupant = slots.getLong(slot * SLOT_SIZE);
+                if(occupant == hash) {
+                    write(slot, hash, seqno, cas, expiryAndFlags);
+                    return false;
+                }
+                if(occupant == 0) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if(size < maxSize || (slot == home && size < mask)) {
+                write(slot, hash, seqno, cas, expiryAndFlags);
+                size++;
+                return false;
+            }
+            if(slot == home) {
+                // the one empty slot left has to stay empty
+                return false;
+            }
+            write(home, hash, seqno, cas, expiryAndFlags);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove a key, shifting the rest of its probe chain back
+     */
+    void remove(long hash) {
+        long stamp = lock.writeLock();
+        try {
+            int hole = find(hash);
+            if(hole < 0) {
+                return;
+            }
+            int slot = hole;
+            while(true) {
+                slot = (slot + 1) & mask;
+                long occupant = slots.getLong(slot * SLOT_SIZE);
+                if(occupant == 0) {
+                    break;
+                }
+                int home = (int)occupant & mask;
+                boolean reachable = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+                if(reachable) {
+                    // the occupant would still be found from its home slot
+                    continue;
+                }
+                copy(slot, hole);
+                hole = slot;
+            }
+            write(hole, 0, 0, 0, 0);
+            size--;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            for (int offset = 0; offset < slots.capacity(); offset += 8) {
+                slots.putLong(offset, 0);
+            }
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int find(long hash) {
+        int slot = (int)hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long occupant = slots.getLong(slot * SLOT_SIZE);
+            if(occupant == hash) {
+                return slot;
+            }
+            if(occupant == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void write(int slot, long hash, long seqno, long cas, long expiryAndFlags) {
+        int offset = slot * SLOT_SIZE;
+        slots.putLong(offset, hash);
+        slots.putLong(offset + SEQNO, seqno);
+        slots.putLong(offset + CAS, cas);
+        slots.putLong(offset + EXPIRY_AND_FLAGS, expiryAndFlags);
+    }
+
+    private void copy(int from, int to) {
+        int fromOffset = from * SLOT_SIZE;
+        int toOffset = to * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            slots.putLong(toOffset + i, slots.getLong(fromOffset + i));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.servlet.UnavailableException;
+
+import com.couchbase.capi.BatchRevsDiffBehavior;
+import com.couchbase.capi.CAPIBehavior;
+
+/**
+ * Coalesces the lookups of concurrent _revs_diff requests.
+ *
+ * The ids of requests arriving within lingerMillis of each other are
+ * collected and looked up together, then every request gets the answers for
+ * its own ids.  With a {@link BatchRevsDiffBehavior} a whole batch is a
+ * single behavior call, otherwise there is one call per database in the
+ * batch.  When concurrent requests ask about the same document, its
+ * revisions are looked up once and each request only sees the missing
+ * revisions it asked about.
+ */
+public class RevsDiffCoalescer extends BatchingStage<Map<String, Object>, Map<String, Object>> {
+
+    protected CAPIBehavior capiBehavior;
+
+    /**
+     * @param capiBehavior the behavior the lookups go to
+     * @param maxBatchIds flush once this many ids are waiting
+     * @param lingerMillis flush once the oldest request has waited this long
+     */
+    public RevsDiffCoalescer(CAPIBehavior capiBehavior, int maxBatchIds, long lingerMillis) {
+        super("capi-revs-diff-coalescer", maxBatchIds, lingerMillis);
+        this.capiBehavior = capiBehavior;
+    }
+
+    @Override
+    protected int weigh(Map<String, Object> revs) {
+        return revs.size();
+    }
+
+    @Override
+    protected void flush(List<Pending<Map<String, Object>, Map<String, Object>>> batch) {
+        Map<String, List<Pending<Map<String, Object>, Map<String, Object>>>> requestsByDatabase = new LinkedHashMap<>();
+        Map<String, Map<String, Object>> revsByDatabase = new LinkedHashMap<>();
+        for (Pending<Map<String, Object>, Map<String, Object>> request : batch) {
+            requestsByDatabase.computeIfAbsent(request.database, database -> new ArrayList<>()).add(request);
+            Map<String, Object> revs = revsByDatabase.computeIfAbsent(request.database, database -> new LinkedHashMap<>());
+            for (Entry<String, Object> entry : request.payload.entrySet()) {
+                revs.merge(entry.getKey(), entry.getValue(), RevsDiffCoalescer::union);
+            }
+        }
+
+        if(capiBehavior instanceof BatchRevsDiffBehavior) {
+            Map<String, Map<String, Object>> resultsByDatabase;
+            try {
+                resultsByDatabase = ((BatchRevsDiffBehavior)capiBehavior).revsDiffBatch(revsByDatabase);
+            } catch (UnavailableException e) {
+                for (Pending<Map<String, Object>, Map<String, Object>> request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+                return;
+            }
+            for (Entry<String, List<Pending<Map<String, Object>, Map<String, Object>>>> entry : requestsByDatabase.entrySet()) {
+                Map<String, Object> results = resultsByDatabase == null ? null : resultsByDatabase.get(entry.getKey());
+                distribute(entry.getValue(), results);
+            }
+        } else {
+            for (Entry<String, List<Pending<Map<String, Object>, Map<String, Object>>>> entry : requestsByDatabase.entrySet()) {
+                try {
+                    Map<String, Object> results = capiBehavior.revsDiff(entry.getKey(), revsByDatabase.get(entry.getKey()));
+                    distribute(entry.getValue(), results);
+                } catch (UnavailableException e) {
+                    for (Pending<Map<String, Object>, Map<String, Object>> request : entry.getValue()) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Combine the revisions two requests asked about for the same document
+     */
+    private static Object union(Object revs, Object moreRevs) {
+        Set<Object> union = new LinkedHashSet<>();
+        addRevs(union, revs);
+        addRevs(union, moreRevs);
+        return new ArrayList<>(union);
+    }
+
+    private static void addRevs(Collection<Object> into, Object revs) {
+        if(revs instanceof Collection) {
+            into.addAll((Collection<?>)revs);
+        } else {
+            into.add(revs);
+        }
+    }
+
+    /**
+     * Hand every request the answers for its own ids
+     */
+    private void distribute(List<Pending<Map<String, Object>, Map<String, Object>>> requests, Map<String, Object> results) {
+        if(requests.size() == 1) {
+            requests.get(0).result.complete(results);
+            return;
+        }
+        for (Pending<Map<String, Object>, Map<String, Object>> request : requests) {
+            if(results == null) {
+                request.result.complete(null);
+                continue;
+            }
+            Map<String, Object> answer = new HashMap<>();
+            for (Entry<String, Object> entry : request.payload.entrySet()) {
+                Object result = results.get(entry.getKey());
+                if(result != null) {
+                    result = ownRevisions(result, entry.getValue());
+                }
+                if(result != null) {
+                    answer.put(entry.getKey(), result);
+                }
+            }
+            request.result.complete(answer);
+        }
+    }
+
+    /**
+     * Narrow the missing revisions of a shared lookup to those a request asked about
+     *
+     * @return the narrowed result, or null if none of the revisions the request
+     * asked about are missing, in which case the id is left out of its answer
+     */
+    private static Object ownRevisions(Object result, Object asked) {
+        if(!(result instanceof Map)) {
+            return result;
+        }
+        Object missing = ((Map<?, ?>)result).get("missing");
+        if(!(missing instanceof Collection)) {
+            return result;
+        }
+        Set<Object> askedRevs = new HashSet<>();
+        addRevs(askedRevs, asked);
+        if(askedRevs.containsAll((Collection<?>)missing)) {
+            return result;
+        }
+        List<Object> ownMissing = new ArrayList<>();
+        for (Object rev : (Collection<?>)missing) {
+            if(askedRevs.contains(rev)) {
+                ownMissing.add(rev);
+            }
+        }
+        if(ownMissing.isEmpty()) {
+            return null;
+        }
+        Map<Object, Object> narrowed = new HashMap<>((Map<?, ?>)result);
+        narrowed.put("missing", ownMissing);
+        return narrowed;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,12 +22,28 @@ public class StatsServlet extends HttpServlet {
     protected ObjectMapper mapper = new ObjectMapper();
     protected CouchbaseBehavior couchbaseBehavior;
     protected CAPIBehavior capiBehavior;
+    protected CAPIServlet capiServlet;
+    protected Supplier<Map<String, Object>> settings;
 
     public StatsServlet(CouchbaseBehavior couchbaseBehavior, CAPIBehavior capiBehavior) {
         this.couchbaseBehavior = couchbaseBehavior;
         this.capiBehavior = capiBehavior;
     }
 
+    public StatsServlet(CouchbaseBehavior couchbaseBehavior, CAPIBehavior capiBehavior, CAPIServlet capiServlet) {
+        this(couchbaseBehavior, capiBehavior);
+        this.capiServlet = capiServlet;
+    }
+
+    /**
+     * @param settings the settings of the server, reported as they are at the time of the request
+     */
+    public StatsServlet(CouchbaseBehavior couchbaseBehavior, CAPIBehavior capiBehavior, CAPIServlet capiServlet,
+            Supplier<Map<String, Object>> settings) {
+        this(couchbaseBehavior, capiBehavior, capiServlet);
+        this.settings = settings;
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
@@ -37,6 +54,12 @@ public class StatsServlet extends HttpServlet {
         Map<String, Object> resultMap = new HashMap<>();
         resultMap.put("couchbase", couchbaseStats);
         resultMap.put("capi", capiStats);
+        if(capiServlet != null) {
+            resultMap.put("server", capiServlet.getStats());
+        }
+        if(settings != null) {
+            resultMap.put("settings", settings.get());
+        }
 
         OutputStream os = resp.getOutputStream();
         mapper.writeValue(os, resultMap);
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.UnavailableException;
+
+/**
+ * Runs behavior calls on a fixed set of single threaded lanes, chosen by the
+ * vbucket of the database.
+ *
+ * Every vbucket always maps to the same lane, so calls for one vbucket run one
+ * at a time in submission order, while different vbuckets run in parallel.
+ * Databases that do not name a vbucket are spread by the hash of their name.
+ */
+public class StripedExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     * One lane per available processor, with unbounded queues
+     */
+    public StripedExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * @param numLanes the number of lanes
+     * @param queueCapacity the maximum number of calls waiting per lane, 0 for unbounded.
+     * Calls submitted to a full lane fail with UnavailableException.
+     */
+    public StripedExecutor(int numLanes, int queueCapacity) {
+        if(numLanes < 1) {
+            throw new IllegalArgumentException("numLanes must be positive");
+        }
+        lanes = new ThreadPoolExecutor[numLanes];
+        for(int i = 0; i < numLanes; i++) {
+            final String name = "capi-lane-" + i;
+            BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new LinkedBlockingQueue<>();
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getNumLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the lane calls for this database run on
+     */
+    public int laneOf(String database) {
+        int vbucket = DatabaseNames.vbucketOf(database);
+        if(vbucket < 0) {
+            vbucket = database.hashCode() & Integer.MAX_VALUE;
+        }
+        return vbucket % lanes.length;
+    }
+
+    /**
+     * Run the call on the lane of the database
+     */
+    public <T> CompletableFuture<T> submit(String database, Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            lanes[laneOf(database)].execute(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new UnavailableException("lane queue is full"));
+        }
+        return result;
+    }
+
+    public Map<String, Object> getStats() {
+        List<Integer> queueDepths = new ArrayList<>(lanes.length);
+        long completed = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queueDepths.add(lane.getQueue().size());
+            completed += lane.getCompletedTaskCount();
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("lanes", lanes.length);
+        result.put("queue_depths", queueDepths);
+        result.put("completed", completed);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.capi.CouchbaseBehavior;
+
+/**
+ * This servlet is responsible for the streaming variants of the pool and
+ * bucket details.
+ *
+ * Requests like:
+ *
+ * /poolsStreaming/default
+ * AND
+ * /pools/default/bucketsStreaming/default
+ *
+ * The response is chunked and left open.  The current config is sent right
+ * away, and again whenever it changes, each one followed by four newlines
+ * like Couchbase Server does.  Changes are picked up when the behavior
+ * notifies a {@link CouchbaseBehavior.TopologyListener}, and otherwise by
+ * checking every refreshIntervalMillis.  A bucket stream ends when the bucket
+ * goes away or its uuid changes.
+ *
+ * Streams are written with a WriteListener, so a client that stops reading
+ * holds up neither the notifier thread nor the other streams.  While a
+ * stream is behind, only the newest config is kept for it, and a stream
+ * that could not be written for writeTimeoutMillis is ended.
+ */
+@SuppressWarnings("serial")
+public class TopologyStreamingServlet extends HttpServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopologyStreamingServlet.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 5000;
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 30000;
+
+    private static final byte[] CONFIG_SEPARATOR = "\n\n\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    protected ObjectMapper mapper = new ObjectMapper();
+
+    protected CouchbaseBehavior couchbaseBehavior;
+    protected BucketMapServlet bucketMapServlet;
+
+    /**
+     * An open streaming response
+     */
+    protected final class Stream implements WriteListener {
+        final AsyncContext asyncContext;
+        final String pool;
+        final String bucket;
+        final String uuid;
+        // the newest config handed to the stream, written or not
+        String etag;
+
+        private final ServletOutputStream output;
+        private BucketMapServlet.CachedBody next;
+        private BucketMapServlet.CachedBody writing;
+        // 0 while writing the body, 1 the separator, 2 flushing
+        private int part;
+        private int written;
+        // 0 unless a write is waiting for the client
+        private long stalledSinceNanos;
+
+        Stream(AsyncContext asyncContext, String pool, String bucket, String uuid) throws IOException {
+            this.asyncContext = asyncContext;
+            this.pool = pool;
+            this.bucket = bucket;
+            this.uuid = uuid;
+            this.output = asyncContext.getResponse().getOutputStream();
+        }
+
+        /**
+         * Queue a config unless it is the one the stream already has.  It
+         * replaces a config still waiting to be written.
+         */
+        synchronized void offer(BucketMapServlet.CachedBody body) {
+            if(body.etag.equals(etag)) {
+                return;
+            }
+            etag = body.etag;
+            next = body;
+            if(writing == null && stalledSinceNanos == 0) {
+                onWritePossible();
+            }
+        }
+
+        synchronized boolean stalledFor(long millis) {
+            return stalledSinceNanos != 0
+                    && System.nanoTime() - stalledSinceNanos > TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public synchronized void onWritePossible() {
+            try {
+                while(output.isReady()) {
+                    stalledSinceNanos = 0;
+                    if(writing == null) {
+                        if(next == null) {
+                            return;
+                        }
+                        writing = next;
+                        next = null;
+                        part = 0;
+                        written = 0;
+                    }
+                    if(part == 2) {
+                        output.flush();
+                        writing = null;
+                        configsSent.incrementAndGet();
+                        continue;
+                    }
+                    byte[] bytes = part == 0 ? writing.body : CONFIG_SEPARATOR;
+                    int length = Math.min(bytes.length - written, 8192);
+                    output.write(bytes, written, length);
+                    written += length;
+                    if(written == bytes.length) {
+                        part++;
+                        written = 0;
+                    }
+                }
+                // called again once the client has taken what was written
+                if(stalledSinceNanos == 0) {
+                    stalledSinceNanos = System.nanoTime();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("topology stream closed", e);
+                end(this);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug("topology stream failed", t);
+            end(this);
+        }
+    }
+
+    protected final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+
+    private final CouchbaseBehavior.TopologyListener listener = this::topologyChanged;
+    private final ScheduledExecutorService notifier;
+
+    private final AtomicLong configsSent = new AtomicLong();
+
+    private volatile long writeTimeoutMillis = DEFAULT_WRITE_TIMEOUT_MILLIS;
+
+    public TopologyStreamingServlet(CouchbaseBehavior couchbaseBehavior, BucketMapServlet bucketMapServlet) {
+        this(couchbaseBehavior, bucketMapServlet, DEFAULT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    public TopologyStreamingServlet(CouchbaseBehavior couchbaseBehavior, BucketMapServlet bucketMapServlet,
+            long refreshIntervalMillis) {
+        this.couchbaseBehavior = couchbaseBehavior;
+        this.bucketMapServlet = bucketMapServlet;
+        this.notifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capi-topology-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        notifier.scheduleWithFixedDelay(() -> refresh(null, null),
+                refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        couchbaseBehavior.addTopologyListener(listener);
+    }
+
+    /**
+     * Push the new config to the affected streams.  Safe to call from any
+     * thread, the streams are written from the notifier thread.
+     *
+     * @param pool the pool that changed
+     * @param bucket the bucket that changed, or null for all buckets of the pool
+     */
+    public void topologyChanged(String pool, String bucket) {
+        if(bucket == null) {
+            bucketMapServlet.invalidateAll();
+        } else {
+            bucketMapServlet.invalidate(pool, bucket);
+        }
+        notifier.execute(() -> refresh(pool, bucket));
+    }
+
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * @param writeTimeoutMillis how long a stream may go without its client
+     * taking any of what was written before it is ended
+     */
+    public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("streams", streams.size());
+        result.put("configs_sent", configsSent.get());
+        return result;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+
+        String path = req.getPathInfo();
+        String name = path == null ? null : bucketMapServlet.getDatabaseNameFromPath(
+                bucketMapServlet.removePathSuffix(path, "/"));
+        if(name == null || name.isEmpty()) {
+            resp.setStatus(404);
+            return;
+        }
+
+        String pool;
+        String bucket;
+        String uuid;
+        if(req.getServletPath().endsWith("/bucketsStreaming")) {
+            logger.trace("asked for bucket stream {}", name);
+            pool = "default";
+            bucket = name;
+            uuid = req.getParameter("bucket_uuid");
+        } else {
+            logger.trace("asked for pool stream {}", name);
+            pool = name;
+            bucket = null;
+            uuid = req.getParameter("uuid");
+        }
+
+        BucketMapServlet.CachedBody body = currentConfig(pool, bucket, uuid);
+        if(body == null) {
+            resp.setStatus(404);
+            return;
+        }
+
+        resp.setContentType("application/json");
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(0);
+        Stream stream = new Stream(asyncContext, pool, bucket, uuid);
+        synchronized (stream) {
+            // the container calls onWritePossible once the listener is set,
+            // nobody else may write before that
+            stream.etag = body.etag;
+            stream.next = body;
+            stream.output.setWriteListener(stream);
+            streams.add(stream);
+        }
+    }
+
+    /**
+     * @return the current config of a pool or bucket, or null if it is gone or
+     * does not match the requested uuid
+     */
+    protected BucketMapServlet.CachedBody currentConfig(String pool, String bucket, String uuid) throws IOException {
+        if(bucket == null) {
+            Map<String, Object> poolDetails = couchbaseBehavior.getPoolDetails(pool);
+            if(poolDetails == null || (uuid != null && !uuid.equals(couchbaseBehavior.getPoolUUID(pool)))) {
+                return null;
+            }
+            return new BucketMapServlet.CachedBody(null, mapper.writeValueAsBytes(poolDetails));
+        }
+        String actualBucketUUID = couchbaseBehavior.getBucketUUID(pool, bucket);
+        if(actualBucketUUID == null || (uuid != null && !uuid.equals(actualBucketUUID))) {
+            return null;
+        }
+        List<Map<String, Object>> nodes = couchbaseBehavior.getNodesServingPool(pool);
+        if(nodes == null) {
+            return null;
+        }
+        return bucketMapServlet.getBucketBody(pool, bucket, nodes, actualBucketUUID);
+    }
+
+    /**
+     * Send the current config to the streams of a pool or bucket if it changed
+     *
+     * @param pool the pool to refresh, or null for all streams
+     * @param bucket the bucket to refresh, or null for all streams of the pool
+     */
+    protected void refresh(String pool, String bucket) {
+        // streams of the same pool or bucket share the config
+        Map<String, BucketMapServlet.CachedBody> configs = new HashMap<>();
+        long timeout = writeTimeoutMillis;
+        for (Stream stream : streams) {
+            if(stream.stalledFor(timeout)) {
+                logger.debug("ending topology stream of {}/{}, its client stopped reading", stream.pool, stream.bucket);
+                end(stream);
+                continue;
+            }
+            if(pool != null && (!pool.equals(stream.pool)
+                    || (bucket != null && stream.bucket != null && !bucket.equals(stream.bucket)))) {
+                continue;
+            }
+            String key = stream.pool + '\u0000' + stream.bucket + '\u0000' + stream.uuid;
+            try {
+                BucketMapServlet.CachedBody body = configs.get(key);
+                if(body == null && !configs.containsKey(key)) {
+                    body = currentConfig(stream.pool, stream.bucket, stream.uuid);
+                    configs.put(key, body);
+                }
+                if(body == null) {
+                    end(stream);
+                } else {
+                    stream.offer(body);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("unable to refresh topology stream", e);
+                end(stream);
+            }
+        }
+    }
+
+    private void end(Stream stream) {
+        if(streams.remove(stream)) {
+            try {
+                stream.asyncContext.complete();
+            } catch (RuntimeException e) {
+                logger.debug("unable to complete topology stream", e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        couchbaseBehavior.removeTopologyListener(listener);
+        notifier.shutdownNow();
+        for (Stream stream : streams) {
+            end(stream);
+        }
+        super.destroy();
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * The vBucketMap of a bucket, one int per vbucket and copy instead of a list
+ * per vbucket.
+ *
+ * Column 0 holds the index into the server list of the active copy of each
+ * vbucket, the other columns the replicas.  A null column has no server
+ * for any vbucket.  Its serializer writes it straight to the generator in
+ * the usual [[active, replica, ...], ...] form.
+ */
+@JsonSerialize(using = VBucketMap.Serializer.class)
+public class VBucketMap {
+
+    /**
+     * Writes the columns out vbucket by vbucket, without building the lists
+     */
+    public static class Serializer extends JsonSerializer<VBucketMap> {
+
+        @Override
+        public void serialize(VBucketMap map, JsonGenerator generator, SerializerProvider provider)
+                throws IOException {
+            generator.writeStartArray();
+            for(int i=0; i < map.numVbuckets; i++) {
+                generator.writeStartArray();
+                for (int[] column : map.columns) {
+                    generator.writeNumber(column == null ? -1 : column[i]);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private final int numVbuckets;
+    private final int[][] columns;
+
+    /**
+     * @param numVbuckets the number of vbuckets
+     * @param columns the active column followed by the replica columns, the
+     * arrays are used as they are, not copied
+     */
+    public VBucketMap(int numVbuckets, int[]... columns) {
+        if(columns.length == 0) {
+            throw new IllegalArgumentException("A vBucketMap needs at least the active column");
+        }
+        for (int[] column : columns) {
+            if(column != null && column.length != numVbuckets) {
+                throw new IllegalArgumentException("Column has " + column.length + " vbuckets, expected " + numVbuckets);
+            }
+        }
+        this.numVbuckets = numVbuckets;
+        this.columns = columns;
+    }
+
+    public int getNumVbuckets() {
+        return numVbuckets;
+    }
+
+    public int getNumCopies() {
+        return columns.length;
+    }
+
+    /**
+     * @return the index of the server holding the copy of the vbucket, -1 if none does
+     */
+    public int getServer(int copy, int vbucket) {
+        int[] column = columns[copy];
+        return column == null ? -1 : column[vbucket];
+    }
+
+}
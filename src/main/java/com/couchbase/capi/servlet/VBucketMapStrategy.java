@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.List;
+
+/**
+ * Decides which server holds the active copy of each vbucket of a bucket.
+ *
+ * BucketMapServlet calls it whenever it builds a bucket map.  It has to be
+ * deterministic, every server is asked for the map and they must all agree.
+ */
+public interface VBucketMapStrategy {
+
+    /**
+     * @param bucket the bucket the map is for
+     * @param servers the servers, sorted by hostname
+     * @param weights the relative capacity of each server, by index into servers
+     * @param numVbuckets the number of vbuckets
+     * @return the index into servers of each vbucket
+     */
+    int[] assign(String bucket, List<String> servers, double[] weights, int numVbuckets);
+
+}
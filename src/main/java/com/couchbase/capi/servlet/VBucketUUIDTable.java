@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-bucket arrays of vbucket UUIDs, so checkpointing does not ask the
+ * behavior for a UUID it already gave.
+ *
+ * Lookups are a map lookup and an array read without locking.  A UUID is
+ * loaded from the source the first time it is needed and kept until it is
+ * invalidated, so whoever changes a vbucket UUID must call
+ * {@link #invalidate(String, String, int)} or {@link #put(String, String, int, String)},
+ * unless the source reports its changes through a {@link ChangeListener}.
+ * A load racing with an invalidation never leaves the old UUID behind.
+ */
+public class VBucketUUIDTable {
+
+    /**
+     * Where UUIDs come from on a miss, typically CAPIBehavior::getVBucketUUID
+     */
+    public interface Source {
+        String getVBucketUUID(String pool, String bucket, int vbucket);
+
+        /**
+         * Sources that change UUIDs on their own, like CheckpointManager,
+         * tell the table through the listener.  By default the source never
+         * does, and whoever changes a UUID invalidates the table.
+         */
+        default void addChangeListener(ChangeListener listener) {
+        }
+    }
+
+    public interface ChangeListener {
+        /**
+         * The UUID of a vbucket changed, in whatever pool it is asked for
+         */
+        void vbucketUUIDChanged(String bucket, int vbucket);
+    }
+
+    private static final int INITIAL_VBUCKETS = 1024;
+
+    private final Source source;
+    private final ConcurrentHashMap<String, AtomicReferenceArray<String>> buckets = new ConcurrentHashMap<>();
+
+    // bumped by every invalidation, so loads can tell they raced with one
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public VBucketUUIDTable(Source source) {
+        this.source = source;
+        source.addChangeListener(this::invalidateInAllPools);
+    }
+
+    private static String key(String pool, String bucket) {
+        return pool + '/' + bucket;
+    }
+
+    /**
+     * @return the UUID of the vbucket, from the table or else from the source
+     */
+    public String get(String pool, String bucket, int vbucket) {
+        if(vbucket < 0) {
+            return source.getVBucketUUID(pool, bucket, vbucket);
+        }
+        String key = key(pool, bucket);
+        AtomicReferenceArray<String> uuids = buckets.get(key);
+        if(uuids != null && vbucket < uuids.length()) {
+            String uuid = uuids.get(vbucket);
+            if(uuid != null) {
+                hits.incrementAndGet();
+                return uuid;
+            }
+        }
+
+        misses.incrementAndGet();
+        long before = invalidations.get();
+        String uuid = source.getVBucketUUID(pool, bucket, vbucket);
+        if(uuid == null) {
+            return null;
+        }
+        uuids = arrayFor(key, vbucket);
+        if(uuids.compareAndSet(vbucket, null, uuid) && invalidations.get() != before) {
+            // an invalidation may have come in while the source was asked
+            uuids.compareAndSet(vbucket, uuid, null);
+        }
+        return uuid;
+    }
+
+    /**
+     * Record a new UUID for a vbucket.  Negative vbuckets are never kept, so
+     * they are ignored.
+     */
+    public void put(String pool, String bucket, int vbucket, String uuid) {
+        if(vbucket < 0) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        arrayFor(key(pool, bucket), vbucket).set(vbucket, uuid);
+    }
+
+    /**
+     * Forget the UUID of a vbucket, the next lookup asks the source again
+     */
+    public void invalidate(String pool, String bucket, int vbucket) {
+        invalidations.incrementAndGet();
+        AtomicReferenceArray<String> uuids = buckets.get(key(pool, bucket));
+        if(uuids != null && vbucket >= 0 && vbucket < uuids.length()) {
+            uuids.set(vbucket, null);
+        }
+    }
+
+    /**
+     * Forget the UUID of a vbucket of the bucket in every pool
+     */
+    public void invalidateInAllPools(String bucket, int vbucket) {
+        invalidations.incrementAndGet();
+        String suffix = '/' + bucket;
+        for (Map.Entry<String, AtomicReferenceArray<String>> entry : buckets.entrySet()) {
+            String key = entry.getKey();
+            // pool names have no slash, so only this bucket's keys end in the suffix right after the pool
+            if(key.endsWith(suffix) && key.indexOf('/') == key.length() - suffix.length()) {
+                AtomicReferenceArray<String> uuids = entry.getValue();
+                if(vbucket >= 0 && vbucket < uuids.length()) {
+                    uuids.set(vbucket, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the UUIDs of all vbuckets of a bucket
+     */
+    public void invalidate(String pool, String bucket) {
+        invalidations.incrementAndGet();
+        buckets.remove(key(pool, bucket));
+    }
+
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        buckets.clear();
+    }
+
+    /**
+     * @return the array of a bucket, replaced by a larger one if it is too
+     *  short for the vbucket.  The entries are not copied over, a copy could
+     *  bring back a UUID invalidated meanwhile; they are simply loaded again.
+     */
+    private AtomicReferenceArray<String> arrayFor(String key, int vbucket) {
+        while(true) {
+            AtomicReferenceArray<String> uuids = buckets.get(key);
+            if(uuids != null && vbucket < uuids.length()) {
+                return uuids;
+            }
+            int length = Math.max(INITIAL_VBUCKETS, Integer.highestOneBit(vbucket) << 1);
+            AtomicReferenceArray<String> grown = new AtomicReferenceArray<>(length);
+            if(uuids == null) {
+                if(buckets.putIfAbsent(key, grown) == null) {
+                    return grown;
+                }
+            } else if(buckets.replace(key, uuids, grown)) {
+                return grown;
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("buckets", buckets.size());
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        return result;
+    }
+}
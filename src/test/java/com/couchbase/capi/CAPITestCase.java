@@ -33,11 +33,19 @@ public abstract class CAPITestCase extends TestCase {
     protected int port = -1;
 
     public CAPITestCase() {
-        capiBehavior = new CAPIBehaviorTestImpl();
-        couchbaseBehavior = new CouchbaseBehaviorTestImpl();
+        capiBehavior = createCAPIBehavior();
+        couchbaseBehavior = createCouchbaseBehavior();
         capiServer = new CAPIServer(capiBehavior, couchbaseBehavior, "Administrator", "password");
     }
 
+    protected CAPIBehavior createCAPIBehavior() {
+        return new CAPIBehaviorTestImpl();
+    }
+
+    protected CouchbaseBehavior createCouchbaseBehavior() {
+        return new CouchbaseBehaviorTestImpl();
+    }
+
     @Override
     protected void setUp() throws Exception {
         capiServer.start();
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.servlet.UnavailableException;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+
+public class TestAsyncCAPI extends CAPITestCase {
+
+    @Override
+    protected CAPIBehavior createCAPIBehavior() {
+        return new AsyncCAPIBehaviorTestImpl();
+    }
+
+    public void testAsyncRevsDiff() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+
+        List<String> revs = new ArrayList<>();
+        revs.add("1-abc");
+        Map<String,Object> revsDiff = new HashMap<>();
+        revsDiff.put("12345", revs);
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+
+        HttpEntity entity = response.getEntity();
+        Map<String,Map<String, List<Object>>> details = null;
+        if (entity != null) {
+            InputStream input = entity.getContent();
+            try {
+                details = mapper.readValue(input, Map.class);
+            } finally {
+                input.close();
+            }
+        }
+
+        Assert.assertTrue(details.get("12345").get("missing").contains("1-abc"));
+    }
+
+    public void testAsyncBulkDocs() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", "abcdef");
+        doc.put("_rev", "1-xyz");
+
+        List<Object> docs = new ArrayList<>();
+        docs.add(doc);
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", docs);
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+
+        HttpEntity entity = response.getEntity();
+        List<Map<String, Object>> details = null;
+        if (entity != null) {
+            InputStream input = entity.getContent();
+            try {
+                details = mapper.readValue(input, List.class);
+            } finally {
+                input.close();
+            }
+        }
+
+        Assert.assertEquals(1, details.size());
+        Assert.assertEquals("abcdef", details.get(0).get("id"));
+    }
+
+    public void testAsyncBulkDocsUnavailable() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", new ArrayList<Object>());
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(503, response.getStatusLine().getStatusCode());
+    }
+
+    class AsyncCAPIBehaviorTestImpl extends CAPIBehaviorTestImpl implements AsyncCAPIBehavior {
+
+        public CompletionStage<Map<String, Object>> revsDiffAsync(String database, Map<String, Object> revs) {
+            return CompletableFuture.supplyAsync(() -> revsDiff(database, revs));
+        }
+
+        public CompletionStage<List<Object>> bulkDocsAsync(String database, List<Map<String, Object>> docs) {
+            if(docs.isEmpty()) {
+                CompletableFuture<List<Object>> result = new CompletableFuture<>();
+                result.completeExceptionally(new UnavailableException("busy"));
+                return result;
+            }
+            return CompletableFuture.supplyAsync(() -> bulkDocs(database, docs));
+        }
+    }
+}
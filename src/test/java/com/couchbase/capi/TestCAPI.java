@@ -13,11 +13,28 @@
  */
 package com.couchbase.capi;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.Assert;
 
@@ -27,8 +44,24 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+
+import com.couchbase.capi.servlet.AIMDAdmissionController;
+import com.couchbase.capi.servlet.AdmissionController;
+import com.couchbase.capi.servlet.BufferPool;
+import com.couchbase.capi.servlet.BulkDocsBatcher;
+import com.couchbase.capi.servlet.CheckpointManager;
+import com.couchbase.capi.servlet.InMemoryRevisionCache;
+import com.couchbase.capi.servlet.LocalDocumentStore;
+import com.couchbase.capi.servlet.MappedRevisionIndex;
+import com.couchbase.capi.servlet.OffHeapRevisionIndex;
+import com.couchbase.capi.servlet.RevsDiffCoalescer;
+import com.couchbase.capi.servlet.StripedExecutor;
+import com.couchbase.capi.servlet.VBucketUUIDTable;
 
 public class TestCAPI extends CAPITestCase {
 
@@ -141,6 +174,494 @@ public class TestCAPI extends CAPITestCase {
         Assert.assertTrue(details.get("12345").get("missing").contains("2-def"));
     }
 
+    public void testRevsDiffCompressed() throws Exception {
+
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+
+        Map<String,Object> revsDiff = new HashMap<>();
+        for(int i = 0; i < 100; i++) {
+            List<String> revs = new ArrayList<>();
+            revs.add("1-abc" + i);
+            revsDiff.put("doc" + i, revs);
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            mapper.writeValue(gzip, revsDiff);
+        }
+        request.setEntity(new ByteArrayEntity(compressed.toByteArray()));
+        request.setHeader("Content-Encoding", "gzip");
+        request.setHeader("Accept-Encoding", "gzip");
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+
+        Map<String,Map<String, List<Object>>> details = null;
+        InputStream input = new GZIPInputStream(response.getEntity().getContent());
+        try {
+            details = mapper.readValue(input, Map.class);
+        } finally {
+            input.close();
+        }
+
+        Assert.assertEquals(100, details.size());
+        Assert.assertEquals("1-abc42", details.get("doc42").get("missing").get(0));
+    }
+
+    public void testBulkDocsDeflated() throws Exception {
+
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", "abcdef");
+        doc.put("_rev", "1-xyz");
+
+        List<Object> docs = new ArrayList<>();
+        docs.add(doc);
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", docs);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed)) {
+            mapper.writeValue(deflate, bulkDocs);
+        }
+        request.setEntity(new ByteArrayEntity(compressed.toByteArray()));
+        request.setHeader("Content-Encoding", "deflate");
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        // too small to be worth compressing, and the client did not ask for it anyway
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+
+        List<Map<String, Object>> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), List.class);
+        Assert.assertEquals(1, details.size());
+        Assert.assertEquals("abcdef", details.get(0).get("id"));
+        Assert.assertEquals("1-xyz", details.get(0).get("rev"));
+    }
+
+    public void testUnsupportedContentEncoding() throws Exception {
+
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(new byte[] { 1, 2, 3 }));
+        request.setHeader("Content-Encoding", "br");
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(415, response.getStatusLine().getStatusCode());
+        Map<String, Object> error = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Assert.assertEquals("unsupported_media_type", error.get("error"));
+    }
+
+    public void testRevsDiffOnLanes() throws Exception {
+        capiServer.getCAPIServlet().setStripedExecutor(new StripedExecutor(2, 0));
+
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default%2F12%3Babcdef/_revs_diff"));
+
+        List<String> revs = new ArrayList<>();
+        revs.add("1-abc");
+        Map<String,Object> revsDiff = new HashMap<>();
+        revsDiff.put("12345", revs);
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+        // the test behavior only knows the database "default"
+        Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        response = client.execute(new HttpGet(localhost("_stats")));
+        Map<String, Map<String, Map<String, Object>>> stats = null;
+        InputStream input = response.getEntity().getContent();
+        try {
+            stats = mapper.readValue(input, Map.class);
+        } finally {
+            input.close();
+        }
+
+        Map<String, Object> laneStats = stats.get("server").get("striped_executor");
+        Assert.assertEquals(2, laneStats.get("lanes"));
+        Assert.assertEquals(2, ((List<?>)laneStats.get("queue_depths")).size());
+        Assert.assertEquals(1, laneStats.get("completed"));
+    }
+
+    public void testRevsDiffFromRevisionCache() throws Exception {
+        capiServer.getCAPIServlet().setRevisionCache(new InMemoryRevisionCache(1024));
+
+        HttpClient client = getClient();
+
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", "abcdef");
+        doc.put("_rev", "1-xyz");
+        List<Object> docs = new ArrayList<>();
+        docs.add(doc);
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", docs);
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        Map<String,Object> revsDiff = new HashMap<>();
+        revsDiff.put("abcdef", Arrays.asList("1-xyz"));
+        revsDiff.put("ghijkl", Arrays.asList("1-pdr"));
+
+        // the test behavior reports every revision as missing, so only the
+        // document not seen through _bulk_docs may come back
+        request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Assert.assertEquals(1, details.size());
+        Assert.assertTrue(details.containsKey("ghijkl"));
+
+        // a newer revision is not known yet
+        revsDiff.clear();
+        revsDiff.put("abcdef", Arrays.asList("2-xyz"));
+        request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        response = client.execute(request);
+        details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Assert.assertTrue(details.containsKey("abcdef"));
+
+        response = client.execute(new HttpGet(localhost("_stats")));
+        Map<String, Map<String, Map<String, Object>>> stats =
+                mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Map<String, Object> cacheStats = stats.get("server").get("revision_cache");
+        Assert.assertEquals(1, cacheStats.get("size"));
+        // the outdated revision found an entry but not a match
+        Assert.assertEquals(1, cacheStats.get("hits"));
+        Assert.assertEquals(2, cacheStats.get("misses"));
+    }
+
+    public void testRevsDiffFromOffHeapRevisionIndex() throws Exception {
+        OffHeapRevisionIndex index = new OffHeapRevisionIndex(1000);
+        capiServer.getCAPIServlet().setRevisionCache(index);
+
+        HttpClient client = getClient();
+
+        List<Object> docs = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "doc" + i);
+            doc.put("_rev", (i + 1) + "-00000000000000" + i + "f00000000000000ab");
+            docs.add(doc);
+        }
+        // not a Couchbase revision, so it cannot be indexed
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", "other");
+        doc.put("_rev", "1-xyz");
+        docs.add(doc);
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", docs);
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals("2-000000000000001f00000000000000ab", index.get("default", "doc1"));
+        Assert.assertTrue(index.contains("default", "doc2", 3, 0x2fL, 0xabL));
+        Assert.assertFalse(index.contains("default/1", "doc2", 3, 0x2fL, 0xabL));
+
+        Map<String,Object> revsDiff = new HashMap<>();
+        revsDiff.put("doc0", Arrays.asList("1-000000000000000f00000000000000ab"));
+        revsDiff.put("doc1", Arrays.asList("1-000000000000001f00000000000000ab"));
+        revsDiff.put("other", Arrays.asList("1-xyz"));
+
+        request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Assert.assertEquals(2, details.size());
+        Assert.assertTrue(details.containsKey("doc1"));
+        Assert.assertTrue(details.containsKey("other"));
+
+        index.invalidate("default", "doc0");
+        Assert.assertNull(index.get("default", "doc0"));
+        Assert.assertEquals(2, index.size());
+    }
+
+    public void testMappedRevisionIndexSurvivesRestart() throws Exception {
+        Path directory = Files.createTempDirectory("revisions");
+        try {
+            MappedRevisionIndex index = MappedRevisionIndex.open(directory, 1000);
+            capiServer.getCAPIServlet().setRevisionCache(index);
+
+            HttpClient client = getClient();
+
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "abcdef");
+            doc.put("_rev", "4-00000000000000aa0000000000000000");
+            List<Object> docs = new ArrayList<>();
+            docs.add(doc);
+            Map<String, Object> bulkDocs = new HashMap<>();
+            bulkDocs.put("docs", docs);
+
+            HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+            index.close();
+
+            try (MappedRevisionIndex reopened = MappedRevisionIndex.open(directory, 1000)) {
+                Assert.assertEquals(1, reopened.size());
+                Assert.assertEquals("4-00000000000000aa0000000000000000", reopened.get("default", "abcdef"));
+                // written without a clean close, so nothing is trusted
+                reopened.put("default", "ghijkl", 1, 1, 0);
+                reopened.flush();
+                try (MappedRevisionIndex crashed = MappedRevisionIndex.open(directory, 1000)) {
+                    Assert.assertEquals(0, crashed.size());
+                    Assert.assertNull(crashed.get("default", "abcdef"));
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    public void testMappedRevisionIndexNotClosedAnswersMissing() throws Exception {
+        Path directory = Files.createTempDirectory("revisions");
+        try (MappedRevisionIndex index = MappedRevisionIndex.open(directory, 1000)) {
+            capiServer.getCAPIServlet().setRevisionCache(index);
+
+            HttpClient client = getClient();
+
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "abcdef");
+            doc.put("_rev", "4-00000000000000aa0000000000000000");
+            List<Object> docs = new ArrayList<>();
+            docs.add(doc);
+            Map<String, Object> bulkDocs = new HashMap<>();
+            bulkDocs.put("docs", docs);
+
+            HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+            index.flush();
+
+            // reopened as after a crash, the revision may never have reached the backend
+            try (MappedRevisionIndex crashed = MappedRevisionIndex.open(directory, 1000)) {
+                capiServer.getCAPIServlet().setRevisionCache(crashed);
+
+                Map<String,Object> revsDiff = new HashMap<>();
+                revsDiff.put("abcdef", Arrays.asList("4-00000000000000aa0000000000000000"));
+                request = new HttpPost(localhost("default/_revs_diff"));
+                request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+                response = client.execute(request);
+                Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+                Map<String, Map<String, Object>> details =
+                        mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+                Assert.assertEquals(Arrays.asList("4-00000000000000aa0000000000000000"),
+                        details.get("abcdef").get("missing"));
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public void testRevsDiffCoalesced() throws Exception {
+        RevsDiffCoalescer coalescer = new RevsDiffCoalescer(capiBehavior, 100, 200);
+        capiServer.getCAPIServlet().setRevsDiffCoalescer(coalescer);
+
+        final List<Map<String, Map<String, List<Object>>>> responses = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            final int n = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+                    // authenticate up front, a challenge could race the request body
+                    request.setHeader("Authorization", "Basic "
+                            + Base64.getEncoder().encodeToString("Administrator:password".getBytes(StandardCharsets.UTF_8)));
+
+                    Map<String,Object> revsDiff = new HashMap<>();
+                    revsDiff.put("doc" + n, Arrays.asList("1-abc"));
+                    revsDiff.put("shared", Arrays.asList("1-" + n));
+
+                    request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+                    HttpResponse response = getClient().execute(request);
+
+                    Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+                    Map<String, Map<String, List<Object>>> details =
+                            mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+                    details.put("request", Collections.singletonMap("missing", Arrays.<Object>asList(n)));
+                    synchronized (responses) {
+                        responses.add(details);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(4, responses.size());
+        for (Map<String, Map<String, List<Object>>> details : responses) {
+            int n = (Integer)details.get("request").get("missing").get(0);
+            Assert.assertEquals(3, details.size());
+            Assert.assertEquals(Arrays.asList("1-abc"), details.get("doc" + n).get("missing"));
+            // the shared document was looked up once, with each request's own revision
+            Assert.assertEquals(Arrays.asList("1-" + n), details.get("shared").get("missing"));
+        }
+
+        Map<String, Object> stats = coalescer.getStats();
+        Assert.assertEquals(4L, stats.get("requests_flushed"));
+        Assert.assertTrue((Long)stats.get("batches_flushed") < 4);
+    }
+
+    public void testRevsDiffCoalescedLeavesOutIdsNotMissing() throws Exception {
+        // only the first request's revision of the shared document is missing
+        CAPIBehavior behavior = new CAPIBehaviorTestImpl() {
+            @Override
+            public Map<String, Object> revsDiff(String database, Map<String, Object> revsMap) {
+                Map<String, Object> responseMap = super.revsDiff(database, revsMap);
+                responseMap.put("shared", Collections.singletonMap("missing", Arrays.asList("1-0")));
+                return responseMap;
+            }
+        };
+        // four ids fill a batch, so both requests are looked up together
+        RevsDiffCoalescer coalescer = new RevsDiffCoalescer(behavior, 4, 10000);
+        try {
+            Map<String, Object> first = new HashMap<>();
+            first.put("doc0", Arrays.asList("1-abc"));
+            first.put("shared", Arrays.asList("1-0"));
+            Map<String, Object> second = new HashMap<>();
+            second.put("doc1", Arrays.asList("1-abc"));
+            second.put("shared", Arrays.asList("1-1"));
+
+            CompletableFuture<Map<String, Object>> firstResult = coalescer.submit("default", first);
+            CompletableFuture<Map<String, Object>> secondResult = coalescer.submit("default", second);
+
+            Map<String, Object> firstAnswer = firstResult.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(2, firstAnswer.size());
+            Assert.assertEquals(Collections.singletonMap("missing", Arrays.asList("1-0")), firstAnswer.get("shared"));
+            // as without coalescing, an id with nothing missing is not in the answer
+            Map<String, Object> secondAnswer = secondResult.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Collections.singleton("doc1"), secondAnswer.keySet());
+            Assert.assertEquals(1L, coalescer.getStats().get("batches_flushed"));
+        } finally {
+            coalescer.close();
+        }
+    }
+
+    public void testRevsDiffNotAnObject() throws Exception {
+        HttpClient client = getClient();
+        for (int coalesced = 0; coalesced < 2; coalesced++) {
+            if(coalesced == 1) {
+                capiServer.getCAPIServlet().setRevsDiffCoalescer(
+                        new RevsDiffCoalescer(capiBehavior, 100, 1));
+            }
+            for (String body : new String[] { "null", "[\"doc0\"]", "\"doc0\"" }) {
+                HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+                request.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
+                HttpResponse response = client.execute(request);
+                Assert.assertEquals(body, 400, response.getStatusLine().getStatusCode());
+                Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+                Assert.assertEquals("bad_request", details.get("error"));
+            }
+        }
+    }
+
+    public void testRevsDiffRejectedByAdmissionController() throws Exception {
+        AIMDAdmissionController admissionController = new AIMDAdmissionController(1, 1, 1, 0.5, 5000, 7);
+        capiServer.getCAPIServlet().setAdmissionController(admissionController);
+
+        // hold the only permit
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+
+        HttpClient client = getClient();
+
+        List<String> revs = new ArrayList<>();
+        revs.add("1-abc");
+        Map<String,Object> revsDiff = new HashMap<>();
+        revsDiff.put("12345", revs);
+
+        HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(503, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("7", response.getFirstHeader("Retry-After").getValue());
+        EntityUtils.consume(response.getEntity());
+
+        permit.release(false);
+
+        request = new HttpPost(localhost("default/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        // the permit is released after the response has been sent
+        for(int i = 0; i < 100 && !Integer.valueOf(0).equals(admissionController.getStats().get("in_flight")); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, admissionController.getStats().get("in_flight"));
+        Assert.assertEquals(1L, admissionController.getStats().get("rejected"));
+    }
+
+    public void testAdmissionPermitReleasedOnce() throws Exception {
+        AIMDAdmissionController admissionController = new AIMDAdmissionController(2, 1, 2, 0.5, 0, 1);
+
+        // a permit that never got to call the behavior frees its slot without a latency sample
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+        permit.release(false);
+        permit.release(true);
+        Assert.assertEquals(0, admissionController.getStats().get("in_flight"));
+        Assert.assertEquals(0L, admissionController.getStats().get("overloaded"));
+        Assert.assertEquals(2, admissionController.getLimit());
+
+        // once started, the threshold of 0ms makes the request count as overload
+        AdmissionController.Permit other = admissionController.tryAcquire();
+        AdmissionController.Permit started = admissionController.tryAcquire();
+        started.started();
+        Thread.sleep(1);
+        started.release(false);
+        started.release(false);
+        Assert.assertEquals(1, admissionController.getStats().get("in_flight"));
+        Assert.assertEquals(1L, admissionController.getStats().get("overloaded"));
+        Assert.assertEquals(1, admissionController.getLimit());
+        other.release(false);
+        Assert.assertEquals(0, admissionController.getStats().get("in_flight"));
+    }
+
     public void testRevsDiffDoesNotExist() throws Exception {
         HttpClient client = getClient();
 
@@ -158,6 +679,204 @@ public class TestCAPI extends CAPITestCase {
         Assert.assertEquals(404, response.getStatusLine().getStatusCode());
     }
 
+    public void testCheckpointFromVBucketUUIDTable() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        capiServer.getCAPIServlet().setVBucketUUIDTable(new VBucketUUIDTable((pool, bucket, vbucket) -> {
+            lookups.incrementAndGet();
+            return capiBehavior.getVBucketUUID(pool, bucket, vbucket);
+        }));
+
+        HttpClient client = getClient();
+
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put("bucket", "default");
+        checkpoint.put("vb", 5);
+        checkpoint.put("vbopaque", "00000000000000000000000000000000");
+
+        for (String special : Arrays.asList("_pre_replicate", "_commit_for_checkpoint", "_pre_replicate")) {
+            HttpPost request = new HttpPost(localhost(special));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Assert.assertEquals("00000000000000000000000000000000", details.get("vbopaque"));
+        }
+        Assert.assertEquals(1, lookups.get());
+
+        capiServer.getCAPIServlet().invalidateVBucketUUID("default", 5);
+        HttpPost request = new HttpPost(localhost("_commit_for_checkpoint"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertEquals(2, lookups.get());
+
+        // vbuckets beyond the initial table size are looked up as well
+        checkpoint.put("vb", 4096);
+        checkpoint.remove("vbopaque");
+        request = new HttpPost(localhost("_pre_replicate"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+        response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertEquals(3, lookups.get());
+    }
+
+    public void testVBucketUUIDTableIgnoresNegativeVBuckets() throws Exception {
+        VBucketUUIDTable table = new VBucketUUIDTable((pool, bucket, vbucket) -> "uuid" + vbucket);
+        table.put("default", "default", -1, "ignored");
+        table.invalidate("default", "default", -1);
+        Assert.assertEquals("uuid-1", table.get("default", "default", -1));
+        Assert.assertEquals(0, table.getStats().get("buckets"));
+    }
+
+    public void testCheckpointManagerSurvivesRestart() throws Exception {
+        Path file = Files.createTempFile("checkpoints", ".log");
+        try {
+            CheckpointManager manager = CheckpointManager.open(file);
+            capiServer.getCAPIServlet().setCheckpointManager(manager);
+
+            HttpClient client = getClient();
+
+            Map<String, Object> checkpoint = new HashMap<>();
+            checkpoint.put("bucket", "default");
+            checkpoint.put("vb", 3);
+
+            HttpPost request = new HttpPost(localhost("_pre_replicate"));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            String uuid = (String)details.get("vbopaque");
+            Assert.assertEquals(32, uuid.length());
+
+            checkpoint.put("vbopaque", "00000000000000000000000000000000");
+            request = new HttpPost(localhost("_commit_for_checkpoint"));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+            response = client.execute(request);
+            Assert.assertEquals(400, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+            Assert.assertEquals(-1, manager.getLastCommitMillis("default", 3));
+
+            checkpoint.put("vbopaque", uuid);
+            request = new HttpPost(localhost("_commit_for_checkpoint"));
+            request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+            response = client.execute(request);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Assert.assertEquals(uuid, details.get("commitopaque"));
+            manager.close();
+
+            // a torn record at the end of the log is dropped on recovery
+            Files.write(file, "C\tdefault\t3".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            CheckpointManager reopened = CheckpointManager.open(file);
+            try {
+                Assert.assertEquals(uuid, reopened.getVBucketUUID("default", 3));
+                Assert.assertTrue(reopened.getLastCommitMillis("default", 3) > 0);
+                String reset = reopened.resetVBucket("default", 3);
+                Assert.assertFalse(uuid.equals(reset));
+                Assert.assertEquals(-1, reopened.getLastCommitMillis("default", 3));
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testCheckpointManagerCompactsWhileRunning() throws Exception {
+        Path file = Files.createTempFile("checkpoints", ".log");
+        try {
+            String uuid;
+            try (CheckpointManager manager = CheckpointManager.open(file)) {
+                uuid = manager.getVBucketUUID("default", 0);
+                for(int i = 0; i < 1100; i++) {
+                    manager.commitCheckpoint("default", 0, uuid);
+                }
+                Assert.assertEquals(1L, manager.getStats().get("compactions"));
+            }
+            Assert.assertTrue(Files.readAllLines(file, StandardCharsets.UTF_8).size() < 100);
+
+            try (CheckpointManager reopened = CheckpointManager.open(file)) {
+                Assert.assertEquals(uuid, reopened.getVBucketUUID("default", 0));
+                Assert.assertTrue(reopened.getLastCommitMillis("default", 0) > 0);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testCheckpointManagerResetUpdatesVBucketUUIDTable() throws Exception {
+        Path file = Files.createTempFile("checkpoints", ".log");
+        // separators in a bucket name must not break the log records
+        String bucket = "odd\tname\t\n\\";
+        try {
+            String reset;
+            try (CheckpointManager manager = CheckpointManager.open(file)) {
+                VBucketUUIDTable table = new VBucketUUIDTable(manager);
+                String uuid = table.get("default", bucket, 7);
+                reset = manager.resetVBucket(bucket, 7);
+                Assert.assertFalse(uuid.equals(reset));
+                Assert.assertEquals(reset, table.get("default", bucket, 7));
+            }
+
+            try (CheckpointManager reopened = CheckpointManager.open(file)) {
+                Assert.assertEquals(reset, reopened.getVBucketUUID(bucket, 7));
+                Assert.assertEquals(1, reopened.getStats().get("vbuckets"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testCheckpointManagerForgetsUUIDThatWasNotWritten() throws Exception {
+        Path file = Files.createTempFile("checkpoints", ".log");
+        try {
+            CheckpointManager manager = CheckpointManager.open(file);
+            manager.close();
+            try {
+                manager.getVBucketUUID("default", 1);
+                Assert.fail("a UUID that is not durable must not be handed out");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(0, manager.getStats().get("vbuckets"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testCheckpointManagerRecordsOnlyKnownVBuckets() throws Exception {
+        Path file = Files.createTempFile("checkpoints", ".log");
+        try (CheckpointManager manager = CheckpointManager.open(file)) {
+            String uuid = manager.getVBucketUUID("default", 2);
+            long size = Files.size(file);
+            Assert.assertFalse(manager.commitCheckpoint("default", 3, uuid));
+            Assert.assertFalse(manager.commitCheckpoint("default", 2, "00000000000000000000000000000000"));
+            Assert.assertEquals(size, Files.size(file));
+            Assert.assertEquals(-1, manager.getLastCommitMillis("default", 3));
+            Assert.assertTrue(manager.commitCheckpoint("default", 2, uuid));
+            Assert.assertTrue(Files.size(file) > size);
+
+            try {
+                manager.getVBucketUUID(null, 2);
+                Assert.fail("a null bucket was accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                manager.commitCheckpoint("default", -1, uuid);
+                Assert.fail("a negative vbucket was accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Assert.assertEquals(1, manager.getStats().get("vbuckets"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
     public void testBulkDocs() throws Exception {
 
         HttpClient client = getClient();
@@ -200,6 +919,187 @@ public class TestCAPI extends CAPITestCase {
         Assert.assertEquals("1-pdr", details.get(1).get("rev"));
     }
 
+    private static byte[] paddedBulkDocs(int length) throws Exception {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", "abcdef");
+        doc.put("_rev", "1-xyz");
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", Collections.singletonList(doc));
+        byte[] body = mapper.writeValueAsBytes(bulkDocs);
+        byte[] padded = Arrays.copyOf(body, length);
+        Arrays.fill(padded, body.length, length, (byte)' ');
+        return padded;
+    }
+
+    public void testRequestBodySizedByContentLength() throws Exception {
+        BufferPool pool = new BufferPool(false, 16, 1024 * 1024, 4);
+        capiServer.getCAPIServlet().setBufferPool(pool);
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+        request.setEntity(new ByteArrayEntity(paddedBulkDocs(1024)));
+        HttpResponse response = getClient().execute(request);
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        // a body of exactly a power of two fits the buffer sized by its Content-Length
+        Assert.assertEquals(1L, pool.getStats().get("allocated"));
+        Assert.assertEquals(1024L, pool.getStats().get("pooled_bytes"));
+    }
+
+    public void testRequestBodyTooLarge() throws Exception {
+        capiServer.getCAPIServlet().setMaxRequestBodySize(512);
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+        request.setEntity(new ByteArrayEntity(paddedBulkDocs(1024)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(413, response.getStatusLine().getStatusCode());
+        Map<?, ?> error = mapper.readValue(EntityUtils.toString(response.getEntity()), Map.class);
+        Assert.assertEquals("too_large", error.get("error"));
+
+        // without a Content-Length the limit applies as the body is read
+        request = new HttpPost(localhost("default/_bulk_docs"));
+        // the entity cannot be repeated after an authentication challenge
+        request.setHeader("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                "Administrator:password".getBytes(StandardCharsets.UTF_8)));
+        request.setEntity(new InputStreamEntity(new ByteArrayInputStream(paddedBulkDocs(1024)), -1));
+        response = client.execute(request);
+        Assert.assertEquals(413, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        request = new HttpPost(localhost("default/_bulk_docs"));
+        request.setEntity(new ByteArrayEntity(paddedBulkDocs(256)));
+        response = client.execute(request);
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+    }
+
+    public void testBulkDocsChunked() throws Exception {
+
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        List<Object> docs = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "doc" + i);
+            doc.put("_rev", "1-" + i);
+            docs.add(doc);
+        }
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", docs);
+
+        // unknown length, sent with chunked transfer encoding
+        ByteArrayEntity entity = new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs));
+        entity.setChunked(true);
+        request.setEntity(entity);
+        // authenticate up front, a 401 challenge would leave the chunked body
+        // unread and the server may drop the connection before the retry
+        request.setHeader("Authorization", "Basic "
+                + Base64.getEncoder().encodeToString("Administrator:password".getBytes(StandardCharsets.UTF_8)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+
+        List<Map<String, Object>> details = null;
+        InputStream input = response.getEntity().getContent();
+        try {
+            details = mapper.readValue(input, List.class);
+        } finally {
+            input.close();
+        }
+
+        Assert.assertEquals(1000, details.size());
+        Assert.assertEquals("doc999", details.get(999).get("id"));
+    }
+
+    public void testBulkDocsBatched() throws Exception {
+        BulkDocsBatcher batcher = new BulkDocsBatcher(capiBehavior, 100, 200);
+        capiServer.getCAPIServlet().setBulkDocsBatcher(batcher);
+
+        final List<List<Map<String, Object>>> responses = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            final String id = "doc" + i;
+            Thread thread = new Thread(() -> {
+                try {
+                    HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+                    // authenticate up front, a challenge could race the request body
+                    request.setHeader("Authorization", "Basic "
+                            + Base64.getEncoder().encodeToString("Administrator:password".getBytes(StandardCharsets.UTF_8)));
+
+                    Map<String, Object> doc = new HashMap<>();
+                    doc.put("_id", id);
+                    doc.put("_rev", "1-" + id);
+
+                    List<Object> docs = new ArrayList<>();
+                    docs.add(doc);
+
+                    Map<String, Object> bulkDocs = new HashMap<>();
+                    bulkDocs.put("docs", docs);
+
+                    request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+                    HttpResponse response = getClient().execute(request);
+
+                    Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+                    InputStream input = response.getEntity().getContent();
+                    try {
+                        List<Map<String, Object>> details = mapper.readValue(input, List.class);
+                        synchronized (responses) {
+                            responses.add(details);
+                        }
+                    } finally {
+                        input.close();
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(4, responses.size());
+        for (List<Map<String, Object>> details : responses) {
+            Assert.assertEquals(1, details.size());
+            String id = (String)details.get(0).get("id");
+            Assert.assertEquals("1-" + id, details.get(0).get("rev"));
+        }
+    
+        Map<String, Object> stats = batcher.getStats();
+        Assert.assertEquals(4L, stats.get("requests_flushed"));
+        Assert.assertTrue((Long)stats.get("batches_flushed") < 4);
+    }
+
+    public void testBulkDocsBatchedEmptyResult() throws Exception {
+        // CouchDB answers new_edits=false with an empty list
+        CAPIBehavior emptyResults = new CAPIBehaviorTestImpl() {
+            @Override
+            public List<Object> bulkDocs(String database, List<Map<String, Object>> docs) {
+                return new ArrayList<>();
+            }
+        };
+        BulkDocsBatcher batcher = new BulkDocsBatcher(emptyResults, 100, 50);
+        try {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "doc");
+            doc.put("_rev", "1-abc");
+            CompletableFuture<List<Object>> first = batcher.submit("default", Arrays.asList(doc, doc));
+            CompletableFuture<List<Object>> second = batcher.submit("default", null);
+            Assert.assertEquals(Collections.emptyList(), first.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Collections.emptyList(), second.get(10, TimeUnit.SECONDS));
+        } finally {
+            batcher.close();
+        }
+    }
+
     public void testBulkDocsDoesNotExist() throws Exception {
         HttpClient client = getClient();
 
@@ -320,4 +1220,156 @@ public class TestCAPI extends CAPITestCase {
 
         Assert.assertEquals(200, response.getStatusLine().getStatusCode());
     }
+
+    public void testPutLocalDocument() throws Exception {
+        Path file = Files.createTempFile("local", ".json");
+        Files.delete(file);
+        try {
+            LocalDocumentStore store = LocalDocumentStore.open(file, 60000);
+            capiServer.getCAPIServlet().setLocalDocumentStore(store);
+
+            HttpClient client = getClient();
+
+            Map<String, Object> checkpoint = new HashMap<>();
+            checkpoint.put("seqno", 42);
+
+            HttpPut put = new HttpPut(localhost("default/_local/checkpoint"));
+            put.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+            HttpResponse response = client.execute(put);
+            Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+            Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Assert.assertEquals("0-1", details.get("rev"));
+
+            HttpGet get = new HttpGet(localhost("default/_local/checkpoint"));
+            response = client.execute(get);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Assert.assertEquals("_local/checkpoint", details.get("_id"));
+            Assert.assertEquals("0-1", details.get("_rev"));
+            Assert.assertEquals(42, details.get("seqno"));
+
+            capiServer.getCAPIServlet().setLocalDocumentStore(null);
+            Assert.assertTrue(Files.exists(file));
+
+            LocalDocumentStore reopened = LocalDocumentStore.open(file, 60000);
+            try {
+                Map<String, Object> doc = reopened.get("default", "_local/checkpoint");
+                Assert.assertEquals(42, doc.get("seqno"));
+                Assert.assertEquals("0-2", reopened.put("default", "_local/checkpoint", checkpoint));
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testLocalDocumentStoreAppendsAndCompacts() throws Exception {
+        Path file = Files.createTempFile("local", ".log");
+        try {
+            Map<String, Object> checkpoint = new HashMap<>();
+            try (LocalDocumentStore store = LocalDocumentStore.open(file, 60000)) {
+                checkpoint.put("seqno", 0);
+                store.put("default", "_local/other", checkpoint);
+                store.flush();
+                long size = Files.size(file);
+
+                // a flush only appends the documents that changed
+                checkpoint.put("seqno", 1);
+                store.put("default", "_local/checkpoint", checkpoint);
+                store.flush();
+                Assert.assertEquals(2, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+                Assert.assertTrue(Files.size(file) > size);
+
+                for(int i = 2; i <= 1100; i++) {
+                    checkpoint.put("seqno", i);
+                    store.put("default", "_local/checkpoint", checkpoint);
+                    store.flush();
+                }
+                Assert.assertEquals(1L, store.getStats().get("compactions"));
+                Assert.assertTrue(Files.readAllLines(file, StandardCharsets.UTF_8).size() < 100);
+            }
+
+            // a torn record at the end of the log is dropped on open
+            Files.write(file, "{\"database\":\"default\",\"id\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            try (LocalDocumentStore reopened = LocalDocumentStore.open(file, 60000)) {
+                Assert.assertEquals(2, reopened.size());
+                Assert.assertEquals(1100, reopened.get("default", "_local/checkpoint").get("seqno"));
+                Assert.assertEquals("0-1100", reopened.get("default", "_local/checkpoint").get("_rev"));
+                Assert.assertEquals(0, reopened.get("default", "_local/other").get("seqno"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testLocalDocumentCacheWritesThrough() throws Exception {
+        // local documents go to the behavior unless a store is set
+        Assert.assertNull(capiServer.getCAPIServlet().getLocalDocumentStore());
+
+        final Map<String, Map<String, Object>> stored = Collections.synchronizedMap(new HashMap<>());
+        final AtomicInteger reads = new AtomicInteger();
+        CAPIBehavior behavior = new CAPIBehaviorTestImpl() {
+            @Override
+            public Map<String, Object> getLocalDocument(String database, String docId) {
+                reads.incrementAndGet();
+                return stored.get(docId);
+            }
+
+            @Override
+            public String storeLocalDocument(String database, String docId, Map<String, Object> document) {
+                if(docId.endsWith("broken")) {
+                    throw new IllegalStateException("unable to store " + docId);
+                }
+                Map<String, Object> doc = new HashMap<>(document);
+                doc.put("_rev", "1-" + (stored.size() + 1));
+                stored.put(docId, doc);
+                return (String)doc.get("_rev");
+            }
+        };
+        LocalDocumentStore store = new LocalDocumentStore(behavior, 100, 2);
+        capiServer.getCAPIServlet().setLocalDocumentStore(store);
+
+        HttpClient client = getClient();
+        Map<String, Object> checkpoint = new HashMap<>();
+        checkpoint.put("seqno", 42);
+
+        HttpPut put = new HttpPut(localhost("default/_local/checkpoint"));
+        put.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+        HttpResponse response = client.execute(put);
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+        Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        // the revision is the one the behavior gave
+        Assert.assertEquals("1-1", details.get("rev"));
+        Assert.assertEquals("1-1", stored.get("_local/checkpoint").get("_rev"));
+
+        for(int i = 0; i < 2; i++) {
+            response = client.execute(new HttpGet(localhost("default/_local/checkpoint")));
+            details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Assert.assertEquals("1-1", details.get("_rev"));
+            Assert.assertEquals(42, details.get("seqno"));
+        }
+        Assert.assertEquals(0, reads.get());
+
+        // cached documents expire
+        Thread.sleep(200);
+        response = client.execute(new HttpGet(localhost("default/_local/checkpoint")));
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertEquals(1, reads.get());
+
+        // a failed write is reported to the client
+        put = new HttpPut(localhost("default/_local/broken"));
+        put.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(checkpoint)));
+        response = client.execute(put);
+        Assert.assertEquals(500, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertFalse(stored.containsKey("_local/broken"));
+
+        // and the cache stays within its size
+        store.put("default", "_local/one", checkpoint);
+        store.put("default", "_local/two", checkpoint);
+        Assert.assertTrue(store.size() <= 2);
+    }
 }
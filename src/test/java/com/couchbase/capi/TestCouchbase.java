@@ -13,10 +13,23 @@
  */
 package com.couchbase.capi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import junit.framework.Assert;
 
@@ -28,6 +41,22 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.util.EntityUtils;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.Promise;
+
+import com.couchbase.capi.servlet.RendezvousVBucketMapStrategy;
+import com.couchbase.capi.servlet.VBucketMapStrategy;
 
 public class TestCouchbase extends CAPITestCase {
 
@@ -166,6 +195,326 @@ public class TestCouchbase extends CAPITestCase {
         client.getConnectionManager().shutdown();
     }
 
+    public void testPoolBucketDetailsCompressed() throws Exception {
+        HttpClient client = getClient();
+
+        HttpUriRequest request = new HttpGet(localhost("pools/default/buckets/default"));
+        request.setHeader("Accept-Encoding", "gzip");
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+
+        Map<String,Object> bucketDetails = null;
+        InputStream input = new GZIPInputStream(response.getEntity().getContent());
+        try {
+            bucketDetails = mapper.readValue(input, Map.class);
+        } finally {
+            input.close();
+        }
+
+        Map<String,Object> serverMap = (Map<String,Object>)bucketDetails.get("vBucketServerMap");
+        List<Object> vbuckets = (List<Object>)serverMap.get("vBucketMap");
+        Assert.assertEquals(1024, vbuckets.size());
+
+        client.getConnectionManager().shutdown();
+    }
+
+    public void testPoolBucketDetailsNotModified() throws Exception {
+        HttpClient client = getClient();
+
+        HttpUriRequest request = new HttpGet(localhost("pools/default/buckets/default"));
+        HttpResponse response = client.execute(request);
+        validateSuccessfulBucketResponse(response);
+        String etag = response.getFirstHeader("ETag").getValue();
+
+        request = new HttpGet(localhost("pools/default/buckets/default"));
+        request.setHeader("If-None-Match", etag);
+        response = client.execute(request);
+        Assert.assertEquals(304, response.getStatusLine().getStatusCode());
+        Assert.assertEquals(etag, response.getFirstHeader("ETag").getValue());
+        EntityUtils.consume(response.getEntity());
+
+        // the bucket list is cached independently of the bucket details
+        request = new HttpGet(localhost("pools/default/buckets"));
+        response = client.execute(request);
+        validateSuccessfulBucketsResponse(response);
+        String listEtag = response.getFirstHeader("ETag").getValue();
+        Assert.assertFalse(etag.equals(listEtag));
+
+        request = new HttpGet(localhost("pools/default/buckets"));
+        request.setHeader("If-None-Match", "\"0\", " + listEtag);
+        response = client.execute(request);
+        Assert.assertEquals(304, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        // rebuilding an unchanged topology produces the same tag
+        capiServer.getBucketMapServlet().invalidateAll();
+        request = new HttpGet(localhost("pools/default/buckets/default"));
+        request.setHeader("If-None-Match", etag);
+        response = client.execute(request);
+        Assert.assertEquals(304, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+
+        client.getConnectionManager().shutdown();
+    }
+
+    public void testRendezvousVBucketMap() throws Exception {
+        VBucketMapStrategy strategy = new RendezvousVBucketMapStrategy();
+        List<String> servers = Arrays.asList("10.0.0.1:8091", "10.0.0.2:8091", "10.0.0.3:8091");
+        int[] map = strategy.assign("default", servers, new double[] {1, 1, 2}, 1024);
+        int[] counts = new int[3];
+        for (int server : map) {
+            counts[server]++;
+        }
+        // shares follow the weights
+        Assert.assertTrue(counts[0] > 200 && counts[0] < 312);
+        Assert.assertTrue(counts[1] > 200 && counts[1] < 312);
+        Assert.assertTrue(counts[2] > 450 && counts[2] < 574);
+        Assert.assertTrue(Arrays.equals(map, strategy.assign("default", servers, new double[] {1, 1, 2}, 1024)));
+
+        // adding a server only moves the vbuckets it takes over
+        List<String> grown = Arrays.asList("10.0.0.0:8091", "10.0.0.1:8091", "10.0.0.2:8091", "10.0.0.3:8091");
+        int[] grownMap = strategy.assign("default", grown, new double[] {1, 1, 1, 2}, 1024);
+        int moved = 0;
+        for(int i = 0; i < map.length; i++) {
+            if(grownMap[i] == 0) {
+                moved++;
+            } else {
+                Assert.assertEquals(servers.get(map[i]), grown.get(grownMap[i]));
+            }
+        }
+        Assert.assertTrue(moved > 150 && moved < 260);
+
+        capiServer.getBucketMapServlet().setVBucketMapStrategy(strategy);
+        HttpClient client = getClient();
+        HttpUriRequest request = new HttpGet(localhost("pools/default/buckets/default"));
+        HttpResponse response = client.execute(request);
+        validateSuccessfulBucketResponse(response);
+        client.getConnectionManager().shutdown();
+    }
+
+    public void testPerBucketVBucketCount() throws Exception {
+        CouchbaseBehavior smallBuckets = new CouchbaseBehaviorTestImpl() {
+            @Override
+            public int getNumVbuckets(String pool, String bucket) {
+                return 64;
+            }
+        };
+        CAPIServer server = new CAPIServer(capiBehavior, smallBuckets,
+                new InetSocketAddress("localhost", 0), "Administrator", "password");
+        server.start();
+        try {
+            HttpClient client = getClient();
+            HttpUriRequest request = new HttpGet("http://localhost:" + server.getPort() + "/pools/default/buckets/default");
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Map<String,Object> bucketDetails = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+
+            Map<String,Object> serverMap = (Map<String,Object>)bucketDetails.get("vBucketServerMap");
+            List<List<Integer>> vbuckets = (List<List<Integer>>)serverMap.get("vBucketMap");
+            Assert.assertEquals(64, vbuckets.size());
+            for(int i = 0; i < vbuckets.size(); i++) {
+                Assert.assertEquals(Arrays.asList(i % 2, -1), vbuckets.get(i));
+            }
+            client.getConnectionManager().shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testCachingCouchbaseBehavior() throws Exception {
+        final AtomicInteger nodeLookups = new AtomicInteger();
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+        final List<CouchbaseBehavior.TopologyListener> listeners = new CopyOnWriteArrayList<>();
+        CouchbaseBehavior slowNodes = new CouchbaseBehaviorTestImpl() {
+            @Override
+            public List<Map<String, Object>> getNodesServingPool(String pool) {
+                nodeLookups.incrementAndGet();
+                lookupStarted.countDown();
+                try {
+                    releaseLookup.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getNodesServingPool(pool);
+            }
+
+            @Override
+            public void addTopologyListener(TopologyListener listener) {
+                listeners.add(listener);
+            }
+        };
+        CAPIServer server = new CAPIServer(capiBehavior, slowNodes,
+                new InetSocketAddress("localhost", 0), "Administrator", "password", 1024, 60000);
+        CachingCouchbaseBehavior caching = (CachingCouchbaseBehavior)server.getCouchbaseBehavior();
+
+        // concurrent callers share one lookup
+        final List<List<Map<String, Object>>> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> results.add(caching.getNodesServingPool("default")));
+            thread.start();
+            threads.add(thread);
+        }
+        Assert.assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        releaseLookup.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(1, nodeLookups.get());
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals(2, results.get(0).size());
+
+        server.start();
+        try {
+            HttpClient client = getClient();
+            HttpUriRequest request = new HttpGet("http://localhost:" + server.getPort() + "/pools/default/buckets");
+            HttpResponse response = client.execute(request);
+            validateSuccessfulBucketsResponse(response);
+            request = new HttpGet("http://localhost:" + server.getPort() + "/pools/default/buckets/default");
+            response = client.execute(request);
+            validateSuccessfulBucketResponse(response);
+            Assert.assertEquals(1, nodeLookups.get());
+
+            // a topology change drops the cached answers
+            for (CouchbaseBehavior.TopologyListener listener : listeners) {
+                listener.topologyChanged("default", null);
+            }
+            request = new HttpGet("http://localhost:" + server.getPort() + "/pools/default/buckets/default");
+            response = client.execute(request);
+            validateSuccessfulBucketResponse(response);
+            Assert.assertEquals(2, nodeLookups.get());
+            client.getConnectionManager().shutdown();
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testServerConfig() throws Exception {
+        CAPIServerConfig config = CAPIServerConfig.builder()
+                .behaviors(capiBehavior, couchbaseBehavior)
+                .credentials("Administrator", "password")
+                .bindAddress(new InetSocketAddress("localhost", 0))
+                .threads(4, 16)
+                .acceptors(1)
+                .selectors(2)
+                .acceptQueueSize(128)
+                .idleTimeoutMillis(5000)
+                .inputBufferSize(16 * 1024)
+                .outputBufferSize(64 * 1024)
+                .build();
+        CAPIServer server = new CAPIServer(config);
+        server.start();
+        try {
+            HttpClient client = getClient();
+            HttpUriRequest request = new HttpGet("http://localhost:" + server.getPort() + "/_stats");
+            HttpResponse response = client.execute(request);
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Map<String, Object> stats = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+            Map<String, Object> settings = (Map<String, Object>)stats.get("settings");
+            Assert.assertEquals(4, settings.get("min_threads"));
+            Assert.assertEquals(16, settings.get("max_threads"));
+            Assert.assertEquals(1, settings.get("acceptors"));
+            Assert.assertEquals(2, settings.get("selectors"));
+            Assert.assertEquals(128, settings.get("accept_queue_size"));
+            Assert.assertEquals(5000, settings.get("idle_timeout_millis"));
+            Assert.assertEquals(16 * 1024, settings.get("input_buffer_size"));
+            Assert.assertEquals(64 * 1024, settings.get("output_buffer_size"));
+            Assert.assertEquals(server.getPort(), settings.get("port"));
+            client.getConnectionManager().shutdown();
+        } finally {
+            server.stop();
+        }
+
+        try {
+            CAPIServerConfig.builder().behaviors(capiBehavior, couchbaseBehavior).build();
+            Assert.fail("credentials are required");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testH2cConnector() throws Exception {
+        CAPIServerConfig config = CAPIServerConfig.builder()
+                .behaviors(capiBehavior, couchbaseBehavior)
+                .credentials("Administrator", "password")
+                .bindAddress(new InetSocketAddress("localhost", 0))
+                .h2cPort(0)
+                .h2cFlowControl(1024 * 1024, 256 * 1024)
+                .h2cStreamLimits(64, 60000)
+                .build();
+        CAPIServer server = new CAPIServer(config);
+        HTTP2Client h2Client = new HTTP2Client();
+        server.start();
+        h2Client.start();
+        try {
+            Map<String, Object> settings = server.getSettings();
+            Assert.assertEquals(server.getH2cPort(), settings.get("h2c_port"));
+            Assert.assertEquals(1024 * 1024, settings.get("h2c_initial_session_recv_window"));
+            Assert.assertEquals(256 * 1024, settings.get("h2c_initial_stream_recv_window"));
+            Assert.assertEquals(64, settings.get("h2c_max_concurrent_streams"));
+
+            FuturePromise<Session> sessionPromise = new FuturePromise<>();
+            h2Client.connect(new InetSocketAddress("localhost", server.getH2cPort()),
+                    new Session.Listener.Adapter(), sessionPromise);
+            Session session = sessionPromise.get(10, TimeUnit.SECONDS);
+
+            // several requests multiplexed over the one connection
+            int requests = 4;
+            final CountDownLatch done = new CountDownLatch(requests);
+            final List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+            final List<ByteArrayOutputStream> bodies = new ArrayList<>();
+            for(int i = 0; i < requests; i++) {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                bodies.add(body);
+                HttpFields fields = new HttpFields();
+                fields.put("Authorization", "Basic "
+                        + Base64.getEncoder().encodeToString("Administrator:password".getBytes(StandardCharsets.UTF_8)));
+                MetaData.Request request = new MetaData.Request("GET",
+                        new HttpURI("http://localhost:" + server.getH2cPort() + "/pools/default/buckets/default"),
+                        HttpVersion.HTTP_2, fields);
+                session.newStream(new HeadersFrame(request, null, true), new Promise.Adapter<>(), new Stream.Listener.Adapter() {
+                    @Override
+                    public void onHeaders(Stream stream, HeadersFrame frame) {
+                        if(frame.getMetaData() instanceof MetaData.Response) {
+                            statuses.add(((MetaData.Response)frame.getMetaData()).getStatus());
+                        }
+                        if(frame.isEndStream()) {
+                            done.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onData(Stream stream, DataFrame frame, Callback callback) {
+                        ByteBuffer data = frame.getData();
+                        byte[] bytes = new byte[data.remaining()];
+                        data.get(bytes);
+                        synchronized (body) {
+                            body.write(bytes, 0, bytes.length);
+                        }
+                        callback.succeeded();
+                        if(frame.isEndStream()) {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(Collections.nCopies(requests, 200), statuses);
+            for (ByteArrayOutputStream body : bodies) {
+                Map<String, Object> bucketDetails = mapper.readValue(body.toByteArray(), Map.class);
+                Assert.assertEquals("membase", bucketDetails.get("bucketType"));
+            }
+            session.close(ErrorCode.NO_ERROR.code, null, Callback.NOOP);
+        } finally {
+            h2Client.stop();
+            server.stop();
+        }
+    }
+
     protected void validateMissingBucketResponse(HttpResponse response) throws IOException {
         Assert.assertEquals(404, response.getStatusLine().getStatusCode());
         EntityUtils.consume(response.getEntity());
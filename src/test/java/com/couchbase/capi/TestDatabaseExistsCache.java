@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+public class TestDatabaseExistsCache extends CAPITestCase {
+
+    // assigned from the superclass constructor, so no initializer here
+    protected ExistsCAPIBehaviorTestImpl behavior;
+
+    @Override
+    protected CAPIBehavior createCAPIBehavior() {
+        behavior = new ExistsCAPIBehaviorTestImpl();
+        return behavior;
+    }
+
+    public void testMissingDatabaseNotCachedByDefault() throws Exception {
+        HttpClient client = getClient();
+
+        Assert.assertEquals(404, get(client, "newdb"));
+        behavior.databases.add("newdb");
+        Assert.assertEquals(200, get(client, "newdb"));
+        Assert.assertEquals(2, behavior.lookups("newdb"));
+
+        // now that it exists the answer is reused
+        Assert.assertEquals(200, get(client, "newdb"));
+        Assert.assertEquals(2, behavior.lookups("newdb"));
+    }
+
+    public void testNegativeCaching() throws Exception {
+        capiServer.getCAPIServlet().setDatabaseExistsCacheNegativeTtl(60000);
+        HttpClient client = getClient();
+
+        Assert.assertEquals(404, get(client, "newdb"));
+        behavior.databases.add("newdb");
+        Assert.assertEquals(404, get(client, "newdb"));
+        Assert.assertEquals(1, behavior.lookups("newdb"));
+
+        capiServer.getCAPIServlet().invalidateDatabaseExists("newdb");
+        Assert.assertEquals(200, get(client, "newdb"));
+        Assert.assertEquals(2, behavior.lookups("newdb"));
+    }
+
+    public void testTtlExpiry() throws Exception {
+        capiServer.getCAPIServlet().setDatabaseExistsCacheTtl(100);
+        HttpClient client = getClient();
+
+        Assert.assertEquals(200, get(client, "default"));
+        Assert.assertEquals(200, get(client, "default"));
+        Assert.assertEquals(1, behavior.lookups("default"));
+
+        Thread.sleep(200);
+        Assert.assertEquals(200, get(client, "default"));
+        Assert.assertEquals(2, behavior.lookups("default"));
+
+        // a database that went away is reported missing once its entry expired
+        behavior.databases.remove("default");
+        Thread.sleep(200);
+        Assert.assertEquals(404, get(client, "default"));
+    }
+
+    public void testEscapedVBucketDatabasePaths() throws Exception {
+        behavior.databases.add("default/12;1234abcd");
+        HttpClient client = getClient();
+
+        Assert.assertEquals(200, get(client, "default%2f12%3b1234abcd"));
+        Assert.assertEquals(200, get(client, "default%2F12%3B1234abcd/"));
+        Assert.assertEquals(1, behavior.lookups("default/12;1234abcd"));
+
+        Map<String, Object> revsDiff = new HashMap<>();
+        revsDiff.put("doc 1", Collections.singletonList("1-abc"));
+        HttpPost request = new HttpPost(localhost("default%2f12%3b1234abcd/_revs_diff"));
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertEquals(Collections.singletonList("default/12;1234abcd"), behavior.revsDiffDatabases);
+
+        // the unescaped form is a different, nested path
+        Assert.assertEquals(404, get(client, "default/12;1234abcd"));
+        Assert.assertEquals(1, behavior.lookups("default"));
+    }
+
+    protected int get(HttpClient client, String path) throws Exception {
+        HttpResponse response = client.execute(new HttpGet(localhost(path)));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    static class ExistsCAPIBehaviorTestImpl extends CAPIBehaviorTestImpl {
+
+        final Set<String> databases = Collections.synchronizedSet(new HashSet<>(Collections.singleton("default")));
+        final List<String> lookups = Collections.synchronizedList(new ArrayList<>());
+        final List<String> revsDiffDatabases = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String databaseExists(String database) {
+            lookups.add(database);
+            return databases.contains(database) ? null : "missing";
+        }
+
+        @Override
+        public Map<String, Object> getDatabaseDetails(String database) {
+            Map<String, Object> responseMap = new HashMap<>();
+            responseMap.put("db_name", database);
+            return responseMap;
+        }
+
+        @Override
+        public Map<String, Object> revsDiff(String database, Map<String, Object> revs) {
+            revsDiffDatabases.add(database);
+            return super.revsDiff("default", revs);
+        }
+
+        int lookups(String database) {
+            return Collections.frequency(lookups, database);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.couchbase.capi.servlet.BufferPool;
+
+public class TestRawBulkDocs extends CAPITestCase {
+
+    protected List<String> bodies = new ArrayList<>();
+    protected List<String> bodyFields = new ArrayList<>();
+
+    @Override
+    protected CAPIBehavior createCAPIBehavior() {
+        return new RawCAPIBehaviorTestImpl();
+    }
+
+    public void testRawBulkDocs() throws Exception {
+        checkRawBulkDocs();
+    }
+
+    public void testRawBulkDocsDirectBuffers() throws Exception {
+        // buffers smaller than the request, so it has to grow across buffers as well
+        capiServer.getCAPIServlet().setBufferPool(new BufferPool(true, 16, 1024, 4));
+        checkRawBulkDocs();
+    }
+
+    protected void checkRawBulkDocs() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        String body = "{\"new_edits\":false,\"docs\":["
+                + "{\"meta\":{\"id\":\"abcdef\",\"rev\":\"1-xyz\"},\"json\": {\"name\" : \"caf\u00e9\", \"n\":[1,2]} },"
+                + "{\"meta\":{\"id\":\"ghijkl\",\"rev\":\"1-pdr\"},\"base64\":\"QUJD\"},"
+                + "{\"_id\":\"mnopqr\",\"_rev\":\"1-stu\"}"
+                + "]}";
+
+        request.setEntity(new ByteArrayEntity(body.getBytes("UTF-8")));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+
+        HttpEntity entity = response.getEntity();
+        List<Map<String, Object>> details = null;
+        if (entity != null) {
+            InputStream input = entity.getContent();
+            try {
+                details = mapper.readValue(input, List.class);
+            } finally {
+                input.close();
+            }
+        }
+
+        Assert.assertEquals(3, details.size());
+        Assert.assertEquals("abcdef", details.get(0).get("id"));
+        Assert.assertEquals("ghijkl", details.get(1).get("id"));
+        Assert.assertNull(details.get(2).get("id"));
+
+        Assert.assertEquals("{\"name\" : \"caf\u00e9\", \"n\":[1,2]}", bodies.get(0));
+        Assert.assertEquals("json", bodyFields.get(0));
+        Assert.assertEquals("\"QUJD\"", bodies.get(1));
+        Assert.assertEquals("base64", bodyFields.get(1));
+        Assert.assertEquals("{\"_id\":\"mnopqr\",\"_rev\":\"1-stu\"}", bodies.get(2));
+        Assert.assertNull(bodyFields.get(2));
+    }
+
+    class RawCAPIBehaviorTestImpl extends CAPIBehaviorTestImpl implements RawBulkDocsBehavior {
+
+        public List<Object> bulkDocsRaw(String database, List<RawDocument> docs) {
+            List<Object> result = new ArrayList<>();
+            for (RawDocument doc : docs) {
+                ByteBuffer body = doc.getBody();
+                byte[] bytes = new byte[body.remaining()];
+                body.get(bytes);
+                bodies.add(new String(bytes, StandardCharsets.UTF_8));
+                bodyFields.add(doc.getBodyField());
+
+                Map<String, Object> itemResponse = new HashMap<>();
+                itemResponse.put("id", doc.getId());
+                result.add(itemResponse);
+            }
+            return result;
+        }
+    }
+}
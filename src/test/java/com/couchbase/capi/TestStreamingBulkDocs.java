@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+
+public class TestStreamingBulkDocs extends CAPITestCase {
+
+    protected List<Integer> chunkSizes = new ArrayList<>();
+
+    @Override
+    protected CAPIBehavior createCAPIBehavior() {
+        return new StreamingCAPIBehaviorTestImpl();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        capiServer.getCAPIServlet().setBulkDocsChunkSize(2);
+        super.setUp();
+    }
+
+    public void testStreamingBulkDocs() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_bulk_docs"));
+
+        List<Object> docs = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("_id", "doc" + i);
+            doc.put("_rev", "1-" + i);
+            docs.add(doc);
+        }
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("new_edits", false);
+        bulkDocs.put("docs", docs);
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+
+        HttpEntity entity = response.getEntity();
+        List<Map<String, Object>> details = null;
+        if (entity != null) {
+            InputStream input = entity.getContent();
+            try {
+                details = mapper.readValue(input, List.class);
+            } finally {
+                input.close();
+            }
+        }
+
+        Assert.assertEquals(5, details.size());
+        for(int i = 0; i < 5; i++) {
+            Assert.assertEquals("doc" + i, details.get(i).get("id"));
+            Assert.assertEquals("1-" + i, details.get(i).get("rev"));
+        }
+
+        Assert.assertEquals(3, chunkSizes.size());
+        Assert.assertEquals(Integer.valueOf(2), chunkSizes.get(0));
+        Assert.assertEquals(Integer.valueOf(1), chunkSizes.get(2));
+    }
+
+    public void testStreamingBulkDocsDoesNotExist() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("doesnotexist/_bulk_docs"));
+
+        Map<String, Object> bulkDocs = new HashMap<>();
+        bulkDocs.put("docs", new ArrayList<Object>());
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(bulkDocs)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+    }
+
+    class StreamingCAPIBehaviorTestImpl extends CAPIBehaviorTestImpl implements StreamingBulkDocsBehavior {
+
+        public List<Object> bulkDocsChunk(String database, List<Map<String, Object>> docs) {
+            chunkSizes.add(docs.size());
+            return bulkDocs(database, docs);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+public class TestStreamingRevsDiff extends CAPITestCase {
+
+    protected List<Integer> chunkSizes = new ArrayList<>();
+
+    @Override
+    protected CAPIBehavior createCAPIBehavior() {
+        return new StreamingCAPIBehaviorTestImpl();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        capiServer.getCAPIServlet().setRevsDiffChunkSize(2);
+        super.setUp();
+    }
+
+    public void testStreamingRevsDiff() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("default/_revs_diff"));
+
+        Map<String, Object> revsDiff = new LinkedHashMap<>();
+        for(int i = 0; i < 5; i++) {
+            List<String> revs = new ArrayList<>();
+            revs.add("1-" + i);
+            revs.add("2-" + i);
+            revsDiff.put("doc" + i, revs);
+        }
+        // a single revision may be given without an array
+        revsDiff.put("single", "3-abc");
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+
+        Map<String, Map<String, List<String>>> details =
+                mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+
+        // the behavior only reports the second revision of even documents as missing
+        Assert.assertEquals(4, details.size());
+        Assert.assertEquals(1, details.get("doc0").get("missing").size());
+        Assert.assertEquals("2-0", details.get("doc0").get("missing").get(0));
+        Assert.assertFalse(details.containsKey("doc1"));
+        Assert.assertEquals("2-4", details.get("doc4").get("missing").get(0));
+        Assert.assertEquals("3-abc", details.get("single").get("missing").get(0));
+
+        Assert.assertEquals(3, chunkSizes.size());
+        Assert.assertEquals(Integer.valueOf(2), chunkSizes.get(0));
+        Assert.assertEquals(Integer.valueOf(2), chunkSizes.get(2));
+    }
+
+    public void testStreamingRevsDiffDoesNotExist() throws Exception {
+        HttpClient client = getClient();
+
+        HttpPost request = new HttpPost(localhost("doesnotexist/_revs_diff"));
+
+        Map<String, Object> revsDiff = new HashMap<>();
+        revsDiff.put("doc0", "1-0");
+
+        request.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(revsDiff)));
+        HttpResponse response = client.execute(request);
+
+        Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+    }
+
+    class StreamingCAPIBehaviorTestImpl extends CAPIBehaviorTestImpl implements StreamingRevsDiffBehavior {
+
+        public Map<String, List<String>> revsDiffChunk(String database, Map<String, List<String>> revs) {
+            if(!"default".equals(database)) {
+                return null;
+            }
+            chunkSizes.add(revs.size());
+            Map<String, List<String>> missing = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : revs.entrySet()) {
+                if(entry.getKey().equals("single")) {
+                    missing.put(entry.getKey(), entry.getValue());
+                } else if(Integer.parseInt(entry.getKey().substring(3)) % 2 == 0) {
+                    missing.put(entry.getKey(), entry.getValue().subList(1, 2));
+                }
+            }
+            return missing;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import com.couchbase.capi.servlet.TopologyStreamingServlet;
+
+public class TestTopologyStreaming extends CAPITestCase {
+
+    /**
+     * Serves an extra node once added, and tells the listeners about it
+     */
+    protected static class ChangingCouchbaseBehavior extends CouchbaseBehaviorTestImpl {
+
+        protected final List<TopologyListener> listeners = new CopyOnWriteArrayList<>();
+        protected volatile boolean extraNode;
+        protected volatile String padding;
+        protected volatile int poolVersion;
+
+        @Override
+        public Map<String, Object> getPoolDetails(String pool) {
+            Map<String, Object> details = super.getPoolDetails(pool);
+            if(details != null && padding != null) {
+                details.put("padding", padding);
+                details.put("version", poolVersion);
+            }
+            return details;
+        }
+
+        @Override
+        public List<Map<String, Object>> getNodesServingPool(String pool) {
+            List<Map<String, Object>> nodes = super.getNodesServingPool(pool);
+            if(nodes != null && extraNode) {
+                Map<String, Object> node = new HashMap<>();
+                node.put("couchApiBase", "http://127.0.0.3/default");
+                node.put("hostname", 8091);
+                nodes.add(node);
+            }
+            return nodes;
+        }
+
+        public void addNode() {
+            extraNode = true;
+            for (TopologyListener listener : listeners) {
+                listener.topologyChanged("default", null);
+            }
+        }
+
+        @Override
+        public void addTopologyListener(TopologyListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeTopologyListener(TopologyListener listener) {
+            listeners.remove(listener);
+        }
+    }
+
+    @Override
+    protected CouchbaseBehavior createCouchbaseBehavior() {
+        return new ChangingCouchbaseBehavior();
+    }
+
+    public void testBucketStreaming() throws Exception {
+        HttpClient client = getClient();
+
+        HttpResponse response = client.execute(new HttpGet(localhost("pools/default/buckets/default")));
+        Map<String, Object> details = mapper.readValue(EntityUtils.toByteArray(response.getEntity()), Map.class);
+        Assert.assertEquals("/pools/default/bucketsStreaming/default?bucket_uuid=00000000000000000000000000000000",
+                details.get("streamingUri"));
+
+        response = client.execute(new HttpGet(localhost((String)details.get("streamingUri"))));
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        InputStream input = response.getEntity().getContent();
+        try {
+            Map<String, Object> config = readConfig(input);
+            Assert.assertEquals(2, ((List<Object>)config.get("nodes")).size());
+
+            ((ChangingCouchbaseBehavior)couchbaseBehavior).addNode();
+
+            config = readConfig(input);
+            Assert.assertEquals(3, ((List<Object>)config.get("nodes")).size());
+            Assert.assertEquals(1, capiServer.getTopologyStreamingServlet().getStats().get("streams"));
+        } finally {
+            client.getConnectionManager().shutdown();
+        }
+    }
+
+    public void testPoolStreaming() throws Exception {
+        HttpClient client = getClient();
+
+        HttpResponse response = client.execute(new HttpGet(localhost("poolsStreaming/default?uuid=00000000000000000000000000000000")));
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        InputStream input = response.getEntity().getContent();
+        try {
+            Map<String, Object> config = readConfig(input);
+            Assert.assertTrue(config.containsKey("buckets"));
+        } finally {
+            client.getConnectionManager().shutdown();
+        }
+
+        client = getClient();
+        response = client.execute(new HttpGet(localhost("pools/default/bucketsStreaming/does_not_exist")));
+        Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        client.getConnectionManager().shutdown();
+    }
+
+    public void testStalledClientDoesNotHoldUpOtherStreams() throws Exception {
+        ChangingCouchbaseBehavior behavior = (ChangingCouchbaseBehavior)couchbaseBehavior;
+        TopologyStreamingServlet servlet = capiServer.getTopologyStreamingServlet();
+        servlet.setWriteTimeoutMillis(500);
+        char[] padding = new char[1024 * 1024];
+        Arrays.fill(padding, 'x');
+        behavior.padding = new String(padding);
+
+        try (Socket stalled = new Socket()) {
+            // a client that asks for the pool stream and never reads it
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new InetSocketAddress("localhost", port));
+            OutputStream os = stalled.getOutputStream();
+            os.write(("GET /poolsStreaming/default HTTP/1.1\r\nHost: localhost\r\nAuthorization: Basic "
+                    + Base64.getEncoder().encodeToString("Administrator:password".getBytes(StandardCharsets.UTF_8))
+                    + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            awaitStreams(servlet, 1);
+
+            // far more than the socket buffers take
+            for(int i = 0; i < 20; i++) {
+                behavior.poolVersion++;
+                servlet.topologyChanged("default", null);
+            }
+
+            HttpClient client = getClient();
+            HttpConnectionParams.setSoTimeout(client.getParams(), 10000);
+            HttpResponse response = client.execute(new HttpGet(localhost(
+                    "pools/default/bucketsStreaming/default?bucket_uuid=00000000000000000000000000000000")));
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            InputStream input = response.getEntity().getContent();
+            try {
+                Map<String, Object> config = readConfig(input);
+                Assert.assertEquals(2, ((List<Object>)config.get("nodes")).size());
+
+                behavior.addNode();
+
+                config = readConfig(input);
+                Assert.assertEquals(3, ((List<Object>)config.get("nodes")).size());
+
+                // the stalled stream is ended once it has not moved for the write timeout
+                Thread.sleep(600);
+                behavior.poolVersion++;
+                servlet.topologyChanged("default", null);
+                awaitStreams(servlet, 1);
+            } finally {
+                client.getConnectionManager().shutdown();
+            }
+        }
+    }
+
+    protected void awaitStreams(TopologyStreamingServlet servlet, int streams) throws InterruptedException {
+        for(int i = 0; i < 100 && !Integer.valueOf(streams).equals(servlet.getStats().get("streams")); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(streams, servlet.getStats().get("streams"));
+    }
+
+    /**
+     * Read the next config of a stream, they are separated by four newlines
+     */
+    protected Map<String, Object> readConfig(InputStream input) throws Exception {
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        int newlines = 0;
+        while(newlines < 4) {
+            int b = input.read();
+            Assert.assertTrue("stream ended", b >= 0);
+            if(b == '\n') {
+                newlines++;
+            } else {
+                if(newlines > 0) {
+                    Assert.fail("unexpected newline inside config");
+                }
+                config.write(b);
+            }
+        }
+        return mapper.readValue(config.toByteArray(), Map.class);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * JsonResponses writes what an ObjectMapper would, only faster
+ */
+public class TestJsonResponses extends TestCase {
+
+    protected ObjectMapper mapper = new ObjectMapper();
+    protected JsonResponses responses = new JsonResponses(mapper.getJsonFactory());
+
+    public static class Rev {
+        public String getRev() {
+            return "1-abc";
+        }
+    }
+
+    public void testWriteMatchesObjectMapper() throws Exception {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("id", "caf\u00e9 \"quoted\"\n\t\\ \u2028");
+        doc.put("ok", true);
+        doc.put("deleted", false);
+        doc.put("seq", 42);
+        doc.put("cas", Long.MAX_VALUE);
+        doc.put("ratio", 0.5);
+        doc.put("error", null);
+        doc.put("revs", Arrays.asList("1-abc", "2-def"));
+        doc.put("empty", new ArrayList<>());
+        doc.put("nested", new LinkedHashMap<>(doc));
+        doc.put("pojo", new Rev());
+
+        List<Object> value = new ArrayList<>();
+        value.add(doc);
+        value.add(null);
+        value.add("\u0000\u001f");
+
+        assertSameAsObjectMapper(value);
+        assertSameAsObjectMapper(doc);
+        assertSameAsObjectMapper("plain");
+        assertSameAsObjectMapper(null);
+    }
+
+    public void testErrorBodyMatchesObjectMapper() throws Exception {
+        assertSameErrorBody(JsonResponses.NOT_FOUND, "missing");
+        assertSameErrorBody(JsonResponses.SERVICE_UNAVAILABLE, "too many concurrent requests");
+        assertSameErrorBody(JsonResponses.NOT_FOUND, "no \"db\" named caf\u00e9\n");
+
+        // repeated reasons reuse the encoded body
+        Assert.assertSame(responses.errorBody(JsonResponses.NOT_FOUND, "missing"),
+                responses.errorBody(JsonResponses.NOT_FOUND, "missing"));
+    }
+
+    public void testConstantBodies() throws Exception {
+        Map<String, Object> ok = new LinkedHashMap<>();
+        ok.put("ok", true);
+        Assert.assertEquals(mapper.writeValueAsString(ok), new String(JsonResponses.OK, StandardCharsets.UTF_8));
+
+        Map<?, ?> tooLarge = mapper.readValue(JsonResponses.TOO_LARGE, Map.class);
+        Assert.assertEquals("too_large", tooLarge.get("error"));
+    }
+
+    protected void assertSameAsObjectMapper(Object value) throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        responses.write(written, value);
+        Assert.assertEquals(mapper.writeValueAsString(value), new String(written.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    protected void assertSameErrorBody(String error, String reason) throws Exception {
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("error", error);
+        expected.put("reason", reason);
+        Assert.assertEquals(mapper.writeValueAsString(expected),
+                new String(responses.errorBody(error, reason), StandardCharsets.UTF_8));
+    }
+}
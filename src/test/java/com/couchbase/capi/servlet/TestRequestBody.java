@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.capi.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * RequestBody reads exactly what the request says it sends
+ */
+public class TestRequestBody extends TestCase {
+
+    private static final byte[] BODY = "{\"docs\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    public void testReadToContentLength() throws Exception {
+        for (BufferPool pool : new BufferPool[] { new BufferPool(), new BufferPool(true, 1024, 65536, 4) }) {
+            try (RequestBody body = RequestBody.read(new ByteArrayInputStream(BODY), BODY.length, -1, pool, 1024)) {
+                Assert.assertEquals(BODY.length, body.length());
+                Assert.assertEquals("{\"docs\":[]}", body.toString());
+            }
+        }
+    }
+
+    public void testTruncatedBodyFails() throws Exception {
+        for (BufferPool pool : new BufferPool[] { new BufferPool(), new BufferPool(true, 1024, 65536, 4) }) {
+            try {
+                RequestBody.read(new ByteArrayInputStream(BODY), BODY.length + 10, -1, pool, 1024);
+                Assert.fail("a body shorter than its Content-Length was accepted");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+}